@@ -0,0 +1,130 @@
+package mobicomp.emu;
+
+/*
+ * AsyncSocket
+ *
+ * a multicast socket of the emulator that doesn't need a thread of its own
+ * waiting in receive(). the packets are either passed to a PacketHandler or
+ * complete the futures returned by receive(). both run on a small pool of 
+ * threads shared by all nodes (mobicomp.emu.callbackThreads in emulator.txt), 
+ * so a client can serve many sockets without any threads at all. a client
+ * preferring its own thread can take all waiting packets at once with
+ * receiveMany().
+ *
+ * the socket must be created by a thread of the client (like any other 
+ * socket). it only exists in the emulator - there is no equivalent in 
+ * java.net.
+ *
+ * NOTE: this class is shared with the clients (see BlockerLoader)
+ *
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+
+public class AsyncSocket
+{
+	private EmuSocket socket;
+	
+	private boolean closed = false;
+	
+	// create a socket bound to port (0 for any port)
+	public AsyncSocket(int port) throws SocketException
+	{
+		socket = new EmuSocket();
+		socket.create();
+		
+		if (socket.getOwnerName() == null)
+			throw new SocketException(
+				"ERROR: sockets must be created by a thread of a client");
+		
+		socket.bind(port, new InetSocketAddress(port).getAddress());
+	}
+	
+	public void joinGroup(InetAddress group) throws IOException
+	{
+		checkOpen();
+		socket.join(group);
+	}
+	
+	public void leaveGroup(InetAddress group) throws IOException
+	{
+		checkOpen();
+		socket.leave(group);
+	}
+	
+	// send p to the group p.getAddress()
+	public void send(DatagramPacket p) throws IOException
+	{
+		checkOpen();
+		socket.send(p);
+	}
+	
+	// let handler get all packets of the socket (null to stop). packets that
+	// arrived before are passed on right away
+	public void setPacketHandler(PacketHandler handler) throws SocketException
+	{
+		checkOpen();
+		socket.setPacketHandler(handler);
+	}
+	
+	// a future completed with the next packet (a DatagramPacket). the futures
+	// get the packets in the order they were requested, before the packet 
+	// handler. closing the socket completes them exceptionally
+	public CompletableFuture receive()
+	{
+		return socket.receiveAsync();
+	}
+	
+	// wait until a packet arrives (at most timeout ms, 0 for infinity) and 
+	// take all packets which are due, as many as there are packets. returns 
+	// the number of packets received. a busy node pays one wakeup for the 
+	// whole batch instead of one per packet
+	public int receiveMany(DatagramPacket[] packets, int timeout) 
+		throws IOException
+	{
+		checkOpen();
+		
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout < 0");
+		
+		return socket.receiveMany(packets, timeout);
+	}
+	
+	// number of packets thrown away because the buffer of the socket was 
+	// full (see mobicomp.emu.overflowPolicy)
+	public int getDroppedPackets()
+	{
+		return socket.getDroppedPackets();
+	}
+	
+	// number of packets whose senders had to wait for room in the buffer
+	public int getBlockedSends()
+	{
+		return socket.getBlockedSends();
+	}
+	
+	public synchronized void close()
+	{
+		if (closed)
+			return;
+		
+		closed = true;
+		socket.close();
+	}
+	
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+	
+	private synchronized void checkOpen() throws SocketException
+	{
+		if (closed)
+			throw new SocketException("Socket is closed");
+	}
+}
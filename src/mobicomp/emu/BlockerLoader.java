@@ -15,12 +15,25 @@ package mobicomp.emu;
 
  public class BlockerLoader extends ClassLoader
 {
+    // classes of the emulator the clients are allowed to use. they are not 
+    // loaded again for each client, but shared with the emulator
+    private static final String[] EXPORTED_CLASSES = {
+        "mobicomp.emu.Clock",
+        "mobicomp.emu.AsyncSocket",
+        "mobicomp.emu.PacketHandler"
+    };
+
     protected BlockerLoader() {
         super(null);
     }
 
     protected Class findClass(String name)
         throws ClassNotFoundException {
+        for (int i = 0; i < EXPORTED_CLASSES.length; i++) {
+            if (EXPORTED_CLASSES[i].equals(name))
+                return BlockerLoader.class.getClassLoader().loadClass(name);
+        }
+        
     	throw new ClassNotFoundException();
     }
 
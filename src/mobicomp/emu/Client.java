@@ -4,24 +4,22 @@ package mobicomp.emu;
  * Client
  *
  * this class is the internal representation of a client. the task of this class
- * is to keep track of all its incoming and outgoing links, but also to draw 
- * a graphical representation into the DrawPanel.
+ * is to keep track of all its incoming and outgoing links. it's drawn by the
+ * DrawPanel.
  *
  */
  
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
-import java.awt.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Client
 {
-	// SLEEPING_xxx means the corresponding program is not running yet
-	public static final Color RUNNING_CLIENT = new Color(0.5f, 0.5f, 1.0f);
-	public static final Color RUNNING_CLIENT_BORDER = new Color(0.0f, 0.0f, 1.0f);
-	public static final Color RUNNING_CLIENT_TEXT = new Color(0.0f, 0.0f, 0.0f);
-	public static final Color SLEEPING_CLIENT = new Color(1.0f, 0.5f, 0.5f);
-	public static final Color SLEEPING_CLIENT_BORDER = new Color(1.0f, 0.0f, 0.0f);
-	public static final Color SLEEPING_CLIENT_TEXT = new Color(0.0f, 0.0f, 0.0f);
-	
 	// radius and the width of the border when drawn
 	public static final int RADIUS = 30;
 	public static final int BORDER_WIDTH = 7;
@@ -39,19 +37,33 @@ public class Client
 	private int x;
 	private int y;
 	
-	// all links ending at this client
-	private Vector links = new Vector();
+	// all links ending at this client. both lists are read by every send() 
+	// without any lock, but only change when the graph is edited or a socket 
+	// is opened/closed -> copy on write
+	private List links = new CopyOnWriteArrayList();
 	
 	// all sockets of the client
-	private Vector sockets = new Vector();
+	private List sockets = new CopyOnWriteArrayList();
+	
+	// the emulated unicast address of the client (see GraphModel)
+	private volatile InetAddress address = null;
+	
+	// the sockets by the group and port they receive from and by the port 
+	// they are bound to for unicast and broadcast packets (InetSocketAddress -> 
+	// EmuSocket[], the port of a group is 0 if Options.portDemux is off).
+	// replaced as a whole whenever a socket changes
+	private volatile Map members = new HashMap();
+	
+	// ephemeral ports are taken from this range (like on Linux)
+	private static final int FIRST_EPHEMERAL_PORT = 32768;
+	private static final int LAST_EPHEMERAL_PORT = 60999;
+	private int nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+	
+	private static final EmuSocket[] NO_SOCKETS = new EmuSocket[0];
 	
 	// is the client already running in the emulator?
 	private boolean running;
 	
-	// small buffer - we don't want to redraw the whole node each time
-	private Image backupImage;
-	private Graphics2D backupGraphic;
-	
 	// constructor
 	public Client(String name, int x, int y)
 	{
@@ -107,119 +119,162 @@ public class Client
 	public void addSocket(EmuSocket socket)
 	{
 		if (socket != null)
+		{
 			sockets.add(socket);
+			updateMembers();
+		}
 	}
 	
 	// removes a socket
 	public void removeSocket(EmuSocket socket)
 	{
 		if (socket != null)
+		{
 			sockets.remove(socket);
+			updateMembers();
+		}
 	}
 	
 	// get all sockets
-	public Vector getSockets()
+	public List getSockets()
 	{
 		return sockets;
 	}
 	
-	// adds a new link
-	public void addLink(Link lnk)
+	// the sockets receiving packets sent to group (or the address of the 
+	// client) and port
+	public EmuSocket[] getMembers(InetAddress group, int port)
 	{
-		if (lnk != null)
-			links.add(lnk);
+		if (!Options.portDemux && group.isMulticastAddress())
+			port = 0;
+		
+		EmuSocket[] ret = (EmuSocket[]) members.get(new InetSocketAddress(group, port));
+		
+		return (ret == null) ? NO_SOCKETS : ret;
 	}
 	
-	// removes a link
-	public void removeLink(Link lnk)
+	public InetAddress getAddress()
 	{
-		if (lnk != null)
-			links.remove(lnk);
+		return address;
 	}
-
-	// draw the node into g
-	// param1: the graphics object to draw
-	// param2: reference to the DrawPanel. needed to create compatible images
-	//
-	// to speed up the drawing, the node is only painted the first time and
-	// and saved in backupImage. every subsequent call of draw() just copies the
-	// image from backupImage to g
-	public void draw(Graphics g, Component c)
+	
+	// set by the GraphModel when the client is added to the graph
+	public void setAddress(InetAddress address)
 	{
-		// g needs to be of type Graphics2D !!
-		if (g==null || c==null || !(g instanceof Graphics2D))
-			throw new RuntimeException("ERROR: Drawing failed");
+		this.address = address;
+		updateMembers();
+	}
+	
+	// rebuild the table of members. must be called after a socket of the 
+	// client changed its groups. invalidates the forwarding table
+	public synchronized void updateMembers()
+	{
+		HashMap lists = new HashMap();
 		
-		// draw the backupImage if required
-		if (backupImage == null)
+		for (Iterator iter = sockets.iterator(); iter.hasNext(); )
 		{
-			backupImage = c.createImage(2*RADIUS, 2*RADIUS);
-			backupGraphic = (Graphics2D) backupImage.getGraphics();
-			backupGraphic.setRenderingHint(
-				RenderingHints.KEY_ANTIALIASING, 
-				RenderingHints.VALUE_ANTIALIAS_ON);
-
-			drawOnce(backupGraphic);
+			EmuSocket curSocket = (EmuSocket) iter.next();
+			Object[] groups = curSocket.getGroups().toArray();
+			
+			for (int i = 0; i < groups.length; i++)
+			{
+				addMember(lists, new InetSocketAddress((InetAddress) groups[i], 
+					Options.portDemux ? curSocket.getLocalPort() : 0), curSocket);
+			}
+			
+			// unicast and broadcast packets only need the port
+			if (address != null)
+			{
+				addMember(lists, new InetSocketAddress(address, 
+					curSocket.getLocalPort()), curSocket);
+			}
+			
+			addMember(lists, new InetSocketAddress(GraphModel.BROADCAST_ADDRESS,
+				curSocket.getLocalPort()), curSocket);
 		}
-
-		// copy the image over from the backup
-		g.drawImage(backupImage, x-RADIUS, y-RADIUS, null);
+		
+		HashMap newMembers = new HashMap();
+		
+		for (Iterator iter = lists.keySet().iterator(); iter.hasNext(); )
+		{
+			Object key = iter.next();
+			Vector list = (Vector) lists.get(key);
+			
+			newMembers.put(key, list.toArray(new EmuSocket[list.size()]));
+		}
+		
+		members = newMembers;
+		Emulator.getRef().getForwardingTable().invalidate();
 	}
 	
-	// draws a picture of the node to backupImage
-	private void drawOnce(Graphics g)
+	// add socket to the list of key in lists (used by updateMembers())
+	private static void addMember(HashMap lists, InetSocketAddress key, 
+		EmuSocket socket)
 	{
-		String displayedName = name;
-		FontMetrics fm = g.getFontMetrics();
+		Vector list = (Vector) lists.get(key);
 		
-		// shorten the name if it is to long to display
-		while (fm.stringWidth(displayedName) > 2*(RADIUS-BORDER_WIDTH))
-			displayedName = 
-				displayedName.substring(0, displayedName.length()-1);
+		if (list == null)
+		{
+			list = new Vector();
+			lists.put(key, list);
+		}
 		
-		// offsets to place the text nicely in the middle of the circle
-		int strOffsetX = fm.stringWidth(displayedName)/2;
-		int strOffsetY = fm.getMaxAscent() - 
-			(fm.getMaxAscent()+fm.getMaxDescent())/2;
+		list.add(socket);
+	}
+	
+	// a free ephemeral port for a socket bound to port 0
+	public synchronized int allocatePort()
+	{
+		int range = LAST_EPHEMERAL_PORT - FIRST_EPHEMERAL_PORT + 1;
 		
-		// draw background
-		g.setColor(DrawPanel.BACKGROUND);
-		g.fillRect(0, 0, 2*RADIUS, 2*RADIUS);
+		for (int tries = 0; tries < range; tries++)
+		{
+			int port = nextEphemeralPort;
+			
+			nextEphemeralPort++;
+			
+			if (nextEphemeralPort > LAST_EPHEMERAL_PORT)
+				nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+			
+			if (!isPortUsed(port))
+				return port;
+		}
 		
-		// draw the node
-		setBorderColor(g);
-		g.fillOval(0, 0, 2*RADIUS, 2*RADIUS);
-		setInsideColor(g);
-		g.fillOval(BORDER_WIDTH, BORDER_WIDTH, 
-			2*(RADIUS-BORDER_WIDTH), 2*(RADIUS-BORDER_WIDTH));
-		setTextColor(g);
-		g.drawString(displayedName, RADIUS-strOffsetX, RADIUS+strOffsetY);
+		throw new RuntimeException("ERROR: no free ephemeral port on " + name);
 	}
 	
-	private void setBorderColor(Graphics g)
+	// true if a socket of the client is bound to port
+	private boolean isPortUsed(int port)
 	{
-		if (running)
-			g.setColor(RUNNING_CLIENT_BORDER);
-		else
-			g.setColor(SLEEPING_CLIENT_BORDER);
+		for (Iterator iter = sockets.iterator(); iter.hasNext(); )
+		{
+			if (((EmuSocket) iter.next()).getLocalPort() == port)
+				return true;
+		}
+		
+		return false;
 	}
 	
-	private void setInsideColor(Graphics g)
+	// adds a new link
+	public void addLink(Link lnk)
 	{
-		if (running)
-			g.setColor(RUNNING_CLIENT);
-		else
-			g.setColor(SLEEPING_CLIENT);
+		if (lnk != null)
+		{
+			links.add(lnk);
+			Emulator.getRef().getForwardingTable().invalidate();
+		}
 	}
 	
-	private void setTextColor(Graphics g)
+	// removes a link
+	public void removeLink(Link lnk)
 	{
-		if (running)
-			g.setColor(RUNNING_CLIENT_TEXT);
-		else
-			g.setColor(SLEEPING_CLIENT_TEXT);
+		if (lnk != null)
+		{
+			links.remove(lnk);
+			Emulator.getRef().getForwardingTable().invalidate();
+		}
 	}
-	
+
 	// returns true if (x,y) is inside of the circle
 	public boolean intersects(int x, int y)
 	{
@@ -251,20 +306,12 @@ public class Client
 	public void setName(String name)
 	{
 		this.name = name;
-		
-		// force the image to be redrawn next time
-		backupGraphic = null;
-		backupImage = null;
 	}
 	
 	// implies a change of the color
 	public void setRunning()
 	{
 		this.running = true;
-		
-		// force the image to be redrawn next time
-		backupGraphic = null;
-		backupImage = null;
 	}
 	
 	// some one-liners to get and set private fields...
@@ -275,7 +322,7 @@ public class Client
 	public String 	getParameters() { return parameters; }
 	public int		getX()			{ return x; }
 	public int		getY()			{ return y; }
-	public Vector	getLinks()		{ return links; }
+	public List		getLinks()		{ return links; }
 	
 	public void setClassName(String name)	{ this.className = name; }
 	public void setClassPath(String classpath) { this.classpath = classpath; }
@@ -6,6 +6,11 @@ package mobicomp.emu;
  * the task of this class is to start a client in a threadgroup unique to the
  * client. this is required by the method mapThreadToNodename() of class
  * Emualtor. starting the client is done by reflection
+ *
+ * with mobicomp.emu.virtualThreads=true, the client runs on a virtual thread
+ * instead (java 21 or newer, looked up by reflection so the emulator still
+ * runs on older JVMs). virtual threads have no ThreadGroup of their own - the
+ * node is found by the NodeContext set in run()
  */
 
 import java.io.File;
@@ -14,24 +19,126 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 
-public class ClientThread extends Thread
+public class ClientThread implements Runnable
 {
+	// Thread.ofVirtual() and the methods of Thread.Builder we need (null if
+	// the JVM has no virtual threads)
+	private static Method ofVirtual = null;
+	private static Method builderName = null;
+	private static Method builderUnstarted = null;
+	private static Method isVirtual = null;
+	
+	// the ThreadGroup all virtual threads share. normal threads started by a
+	// virtual thread are put into it, too
+	private static ThreadGroup virtualThreadGroup = null;
+	
+	static
+	{
+		try
+		{
+			Class builder = Class.forName("java.lang.Thread$Builder");
+			
+			ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+			builderName = builder.getMethod("name", new Class[] { String.class });
+			builderUnstarted = builder.getMethod("unstarted", 
+				new Class[] { Runnable.class });
+			isVirtual = Thread.class.getMethod("isVirtual", new Class[0]);
+			
+			// java 19 and 20 only have them as preview feature - they throw
+			// an UnsupportedOperationException if it's not enabled
+			Thread probe = (Thread) builderUnstarted.invoke(
+				ofVirtual.invoke(null, new Object[0]), 
+				new Object[] { new Runnable() { public void run() {} } });
+			virtualThreadGroup = probe.getThreadGroup();
+		}
+		catch (Exception e)
+		{
+			ofVirtual = null;
+		}
+	}
+	
 	// the client object to be started
 	private Client client;
 	
-	// the threadgroup in which the client needs to be started
+	// the threadgroup in which the client needs to be started (null to start
+	// it on a virtual thread)
 	private ThreadGroup threadGroup;
 	
+	// the node all threads of the client belong to
+	private NodeContext context;
+	
 	// constructor
 	public ClientThread(Client client, ThreadGroup threadGroup)
 	{
-		// we need to join the passed ThreadGroup because the class 
-		// MulticastNetworkEmulator needs this fact to map from sockets to node
-		// names
-		super(threadGroup, null, threadGroup.getName());
-		
 		this.client = client;
 		this.threadGroup = threadGroup;
+		this.context = new NodeContext(client.getName(), threadGroup == null);
+	}
+	
+	// the node all threads of the client belong to
+	public NodeContext getContext()
+	{
+		return context;
+	}
+	
+	// true if the JVM can run clients on virtual threads
+	public static boolean virtualThreadsSupported()
+	{
+		return ofVirtual != null;
+	}
+	
+	public static ThreadGroup getVirtualThreadGroup()
+	{
+		return virtualThreadGroup;
+	}
+	
+	// true if thread is a virtual thread
+	public static boolean isVirtual(Thread thread)
+	{
+		if (ofVirtual == null)
+			return false;
+		
+		try
+		{
+			return ((Boolean) isVirtual.invoke(thread, new Object[0])).booleanValue();
+		}
+		catch (Exception e)
+		{
+			// can't happen - checked by virtualThreadsSupported()
+			throw new RuntimeException("ERROR: " + e);
+		}
+	}
+	
+	// start the client in its own thread
+	public void start()
+	{
+		Thread thread;
+		
+		if (threadGroup != null)
+		{
+			// we need to join the passed ThreadGroup because the class 
+			// MulticastNetworkEmulator needs this fact to map from sockets to 
+			// node names
+			thread = new Thread(threadGroup, this, threadGroup.getName());
+		}
+		else
+		{
+			try
+			{
+				Object builder = ofVirtual.invoke(null, new Object[0]);
+				builder = builderName.invoke(builder, 
+					new Object[] { client.getName() });
+				thread = (Thread) builderUnstarted.invoke(builder, 
+					new Object[] { this });
+			}
+			catch (Exception e)
+			{
+				// can't happen - checked by virtualThreadsSupported()
+				throw new RuntimeException("ERROR: " + e);
+			}
+		}
+		
+		thread.start();
 	}
 	
 	// checks whether the client is ready to be started. returns null if read or
@@ -89,6 +196,13 @@ public class ClientThread extends Thread
 	// start the client
 	public void run()
 	{
+		// every thread started by the client belongs to the node, too
+		NodeContext.set(context);
+		
+		// this thread is counted as client thread now (see Emulator.startClient)
+		Emulator.getRef().addClientThread();
+		Emulator.getRef().getClock().release();
+		
 		if (client.isRunning())
 			throw new RuntimeException("ERROR: Unable to start a client twice");
 			
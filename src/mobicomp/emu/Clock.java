@@ -0,0 +1,251 @@
+package mobicomp.emu;
+
+/*
+ * Clock
+ *
+ * the time of the emulation. by default this is the real time, but the
+ * emulator can run in virtual time, too (mobicomp.emu.virtualTime=true in
+ * emulator.txt). in virtual time, the time stands still as long as one of
+ * the clients is doing something. as soon as all clients are blocked (waiting
+ * for a packet or sleeping in Clock.sleep()), the clock jumps directly to the
+ * next packet that gets due. this way, an experiment runs as fast as the
+ * clients can process their packets.
+ *
+ * clients that need timers should use Clock.currentTimeMillis() and
+ * Clock.sleep() instead of the methods in System and Thread. a client
+ * blocked in Thread.sleep() is considered busy - the emulation just waits
+ * for it in real time. the same goes for threads waiting for each other 
+ * outside of the emulator (Thread.join(), or several threads receiving from
+ * one java.net.DatagramSocket, which lets only one of them in at a time):
+ * the time stands still until they run again. the emulator tells the user
+ * if it looks like they never will.
+ *
+ * NOTE: this class is shared with the clients (see BlockerLoader)
+ *
+ */
+
+public class Clock
+{
+	// needed for singleton pattern
+	private static Clock ref = null;
+
+	// true if the emulator runs in virtual time
+	private boolean virtual;
+
+	// start of the emulation in System.nanoTime() and System.currentTimeMillis()
+	private long origin;
+	private long startMillis;
+
+	// the virtual time in ms since the start of the emulation
+	private volatile long virtualNow = 0;
+
+	// number of client threads currently blocked in the emulator
+	private int blocked = 0;
+
+	// number of reasons why the time must not move on even though all client
+	// threads are blocked (e.g. clients which are just being started)
+	private int holds = 0;
+
+	// constructor, called by the emulator
+	Clock(boolean virtual)
+	{
+		this.virtual = virtual;
+		this.origin = System.nanoTime();
+		this.startMillis = System.currentTimeMillis();
+
+		ref = this;
+	}
+
+	// returns a reference to the clock of the emulator
+	private static Clock getRef()
+	{
+		if (ref != null)
+		{
+			return ref;
+		}
+
+		throw new RuntimeException("ERROR: Can not access clock");
+	}
+
+	/* ***************************** client API ***************************** */
+
+	// the current time of the emulation in ms since 1970 (like
+	// System.currentTimeMillis())
+	public static long currentTimeMillis()
+	{
+		Clock clock = getRef();
+		return clock.startMillis + clock.millis();
+	}
+
+	// sleep millis ms of emulation time
+	public static void sleep(long millis) throws InterruptedException
+	{
+		getRef().sleepFor(millis);
+	}
+
+	// true if the emulation runs in virtual time
+	public static boolean isVirtualTime()
+	{
+		return getRef().virtual;
+	}
+
+	/* ************************** emulator internals ************************ */
+
+	// the time in ms since the start of the emulation
+	long millis()
+	{
+		if (virtual)
+			return virtualNow;
+		else
+			return (System.nanoTime() - origin) / 1000000L;
+	}
+
+	boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	// move the virtual time forward (called by the DeliveryScheduler)
+	void advanceTo(long millis)
+	{
+		if (millis > virtualNow)
+			virtualNow = millis;
+	}
+
+	// mark the thread owning waiter as blocked in the emulator
+	void block(Waiter waiter)
+	{
+		if (!virtual)
+			return;
+
+		// virtual threads other than the main thread of a client are only 
+		// counted once they block
+		Emulator.getRef().addClientThread();
+
+		boolean idle;
+
+		synchronized (this)
+		{
+			if (waiter.blocked)
+				return;
+
+			waiter.blocked = true;
+			blocked++;
+			idle = isIdle();
+		}
+
+		// the last client just went to sleep - time to move on
+		if (idle)
+			Emulator.getRef().getScheduler().wakeUp();
+	}
+
+	// the thread owning waiter is running again. it doesn't matter whether
+	// the thread itself or the thread waking it up calls this method first
+	void unblock(Waiter waiter)
+	{
+		if (!virtual)
+			return;
+
+		synchronized (this)
+		{
+			if (!waiter.blocked)
+				return;
+
+			waiter.blocked = false;
+			blocked--;
+		}
+	}
+
+	// keep the time from moving on until release() is called
+	void hold()
+	{
+		if (!virtual)
+			return;
+
+		synchronized (this)
+		{
+			holds++;
+		}
+	}
+
+	// undo hold()
+	void release()
+	{
+		if (!virtual)
+			return;
+
+		boolean idle;
+
+		synchronized (this)
+		{
+			holds--;
+			idle = isIdle();
+		}
+
+		if (idle)
+			Emulator.getRef().getScheduler().wakeUp();
+	}
+
+	// true if all threads of all clients are blocked in the emulator. this is
+	// the only condition for the time to move on: a thread waiting anywhere 
+	// else (e.g. in Thread.join()) stops the time until it runs again
+	synchronized boolean isIdle()
+	{
+		return (holds == 0) && 
+			(blocked >= Emulator.getRef().countClientThreads());
+	}
+
+	// sleep in emulation time
+	private void sleepFor(long millis) throws InterruptedException
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("timeout value is negative");
+
+		if (!virtual)
+		{
+			Thread.sleep(millis);
+			return;
+		}
+
+		final Waiter waiter = new Waiter();
+
+		synchronized (waiter)
+		{
+			// schedule the timer before blocking - otherwise the time could
+			// jump past it. the timer can't run before we wait, because it
+			// needs the lock of the waiter
+			Emulator.getRef().getScheduler().schedule(
+				(int) Math.min(millis, Integer.MAX_VALUE),
+				new DeliveryScheduler.Task()
+				{
+					public void run()
+					{
+						synchronized (waiter)
+						{
+							unblock(waiter);
+							waiter.notifyAll();
+						}
+					}
+				});
+
+			block(waiter);
+
+			try
+			{
+				while (waiter.blocked)
+					waiter.wait();
+			}
+			finally
+			{
+				unblock(waiter);
+			}
+		}
+	}
+
+	// a token for a thread blocked in the emulator. whoever wakes the thread
+	// up (the thread itself, a delivered packet or a timer) unblocks the token
+	static class Waiter
+	{
+		boolean blocked = false;
+	}
+}
@@ -30,6 +30,9 @@ public class ControlPanel extends JPanel implements ActionListener
 	private JLabel packetLabel = new JLabel("# of packets sent:");
 	private JLabel packetCountLabel = new JLabel("0");
 	
+	private JLabel loopbackLabel = new JLabel("# of loopback packets:");
+	private JLabel loopbackCountLabel = new JLabel("0");
+	
 	private JLabel clientLabel = new JLabel("# of clients:");
 	private JLabel clientCountLabel = new JLabel("0");
 	
@@ -112,6 +115,12 @@ public class ControlPanel extends JPanel implements ActionListener
 		cRight.gridy = 2;
 		statsPane.add(packetCountLabel, cRight);
 		
+		cLeft.gridy = 3;
+		statsPane.add(loopbackLabel, cLeft);
+		
+		cRight.gridy = 3;
+		statsPane.add(loopbackCountLabel, cRight);
+		
 		// Edit Area
 		JPanel editPane = new JPanel();
 		editPane.setBorder(BorderFactory.createTitledBorder("Edit Graph manually"));
@@ -283,6 +292,7 @@ public class ControlPanel extends JPanel implements ActionListener
 					// update the GUI
 					clientCountLabel.setText(Integer.toString(graph.getNumberOfClients()));
 					packetCountLabel.setText(Integer.toString(emu.getPacketCount()));
+					loopbackCountLabel.setText(Integer.toString(emu.getLoopbackCount()));
 					linkCountLabel.setText(Integer.toString(graph.getNumberOfLinks()));
 					Emulator.getRef().redrawGraph();
 				}
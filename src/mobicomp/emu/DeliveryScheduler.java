@@ -0,0 +1,392 @@
+package mobicomp.emu;
+
+/*
+ * DeliveryScheduler
+ *
+ * a hierarchical timing wheel that owns all packets which are delayed by a
+ * link. instead of every socket sorting its packets by arrival time and
+ * sleeping until the first one is due, the scheduler keeps all packets in
+ * flight and hands them over to the receiving socket exactly when they are
+ * due. adding a packet and releasing it are both O(1).
+ *
+ * the wheel has four levels of 256 slots each. one tick is one millisecond, so
+ * level 0 covers the next 256 ms, level 1 the next 65 s, level 2 the next 4.6 h
+ * and level 3 everything else. every time level 0 wraps around, the next slot
+ * of level 1 is cascaded down (and so on for the higher levels)
+ *
+ * in virtual time, the scheduler also drives the clock: when all clients are
+ * blocked, it moves the clock forward to the next tick with something to do
+ *
+ */
+
+public class DeliveryScheduler extends Thread
+{
+	// number of bits per level and the derived sizes
+	private static final int LEVEL_BITS = 8;
+	private static final int SLOTS = 1 << LEVEL_BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	// the slots of all levels. each slot is a singly linked list of tasks
+	private Task[][] wheel = new Task[LEVELS][SLOTS];
+
+	// the next tick which has not been processed yet
+	private long currentTick;
+
+	// number of tasks currently stored in the wheel
+	private int size = 0;
+
+	// the tick the scheduler thread is going to wake up at (Long.MAX_VALUE if
+	// it waits for the first task)
+	private long wakeAt = Long.MAX_VALUE;
+
+	// how long to wait (in real ms) before checking again whether all clients
+	// are blocked. normally, the last client going to sleep wakes us up, but
+	// a client thread may also just terminate. the check only looks at the 
+	// exact count of blocked threads (Clock.isIdle()), so when it's done 
+	// doesn't change how the time moves on
+	private static final int IDLE_CHECK_INTERVAL = 10;
+	
+	// how often (in real ms) the clients are checked for threads waiting 
+	// outside of the emulator while the time stands still (see 
+	// Emulator.areClientThreadsStuck()). this is only reported, the time
+	// doesn't move on because of it
+	private static final int STALL_CHECK_INTERVAL = 2000;
+	
+	// when the virtual time moved on or the clients were checked for the 
+	// last time (System.nanoTime()), and whether they were reported stuck
+	// since the time moved on
+	private long lastStallCheck = System.nanoTime();
+	private boolean stallReported = false;
+
+	// the clock of the emulation - one tick is one ms of this clock
+	private Clock clock;
+
+	public DeliveryScheduler(Clock clock)
+	{
+		super("DeliveryScheduler");
+		setDaemon(true);
+
+		this.clock = clock;
+		currentTick = clock.millis();
+	}
+
+	// current time in ticks (ms since the start of the emulation)
+	public long now()
+	{
+		return clock.millis();
+	}
+
+	// check again whether there is something to do (e.g. because all clients
+	// are blocked now and the virtual time can move on)
+	public synchronized void wakeUp()
+	{
+		notify();
+	}
+
+	// run task after delay milliseconds
+	public synchronized void schedule(int delay, Task task)
+	{
+		if (delay < 0)
+			throw new RuntimeException("ERROR: Delay must be positive");
+
+		long now = now();
+		long deadline = now + delay;
+
+		// an empty wheel may still be at the tick it was emptied - move it to
+		// the current time so the scheduler doesn't need to catch up
+		if (size == 0 && currentTick < now)
+			currentTick = now;
+
+		task.deadline = deadline;
+		insert(task);
+		size++;
+
+		// wake up the scheduler if it sleeps too long for this task
+		if (deadline < wakeAt)
+			notify();
+	}
+
+	// remove a task which didn't run yet. returns false if it is already
+	// running or done
+	public synchronized boolean cancel(Task task)
+	{
+		if (!task.queued)
+			return false;
+
+		Task prev = null;
+		Task cur = wheel[task.level][task.slot];
+
+		while (cur != task)
+		{
+			prev = cur;
+			cur = cur.next;
+		}
+
+		if (prev == null)
+			wheel[task.level][task.slot] = task.next;
+		else
+			prev.next = task.next;
+
+		task.next = null;
+		task.queued = false;
+		size--;
+
+		// the scheduler may wake up for nothing now - that doesn't hurt
+		return true;
+	}
+
+	// put a task into the slot matching its deadline
+	private void insert(Task task)
+	{
+		long deadline = task.deadline;
+
+		if (deadline < currentTick)
+		{
+			// the task is already due - process it with the next tick
+			deadline = currentTick;
+		}
+
+		long delta = deadline - currentTick;
+		int level = 0;
+
+		while ((level < LEVELS - 1) && (delta >= (1L << ((level + 1) * LEVEL_BITS))))
+			level++;
+
+		int slot = (int) ((deadline >>> (level * LEVEL_BITS)) & MASK);
+
+		task.level = level;
+		task.slot = slot;
+		task.queued = true;
+		task.next = wheel[level][slot];
+		wheel[level][slot] = task;
+	}
+
+	// move all tasks of a slot of a higher level down to the lower levels
+	private void cascade(int level, int slot)
+	{
+		Task task = wheel[level][slot];
+		wheel[level][slot] = null;
+
+		while (task != null)
+		{
+			Task next = task.next;
+			insert(task);
+			task = next;
+		}
+	}
+
+	// process the tick currentTick and return all tasks which are due now
+	private Task advance()
+	{
+		long tick = currentTick;
+
+		// cascade the higher levels each time the lower level wraps around
+		for (int level = 1; level < LEVELS; level++)
+		{
+			if ((tick & ((1L << (level * LEVEL_BITS)) - 1)) != 0)
+				break;
+
+			cascade(level, (int) ((tick >>> (level * LEVEL_BITS)) & MASK));
+		}
+
+		int slot = (int) (tick & MASK);
+		Task task = wheel[0][slot];
+		wheel[0][slot] = null;
+
+		currentTick++;
+
+		// collect all due tasks. a task which is not due yet (can only happen
+		// after a cascade of a very long delay) is put back into the wheel
+		Task due = null;
+
+		while (task != null)
+		{
+			Task next = task.next;
+
+			if (task.deadline <= tick)
+			{
+				task.queued = false;
+				task.next = due;
+				due = task;
+				size--;
+			}
+			else
+			{
+				insert(task);
+			}
+
+			task = next;
+		}
+
+		return due;
+	}
+
+	// the next tick at which something can happen: either a task in level 0
+	// gets due or a higher level needs to be cascaded
+	private long nextEvent()
+	{
+		// the current tick is a boundary itself - cascade first
+		if ((currentTick & MASK) == 0)
+			return currentTick;
+		
+		long boundary = (currentTick | MASK) + 1;
+
+		for (long tick = currentTick; tick < boundary; tick++)
+		{
+			if (wheel[0][(int) (tick & MASK)] != null)
+				return tick;
+		}
+
+		return boundary;
+	}
+
+	// true if the virtual time stood still for STALL_CHECK_INTERVAL since
+	// it moved on or the clients were checked the last time
+	private boolean needsStallCheck()
+	{
+		long nanoNow = System.nanoTime();
+
+		if (stallReported || 
+			nanoNow - lastStallCheck < STALL_CHECK_INTERVAL * 1000000L)
+		{
+			return false;
+		}
+
+		lastStallCheck = nanoNow;
+		return true;
+	}
+
+	// tell the user that the virtual time can't move on because client 
+	// threads wait for each other outside of the emulator. called without
+	// holding any lock, as the check may take a while
+	private void reportStall()
+	{
+		if (!Emulator.getRef().areClientThreadsStuck())
+			return;
+
+		stallReported = true;
+		Emulator.getRef().sendEmulatorMessage(
+			"virtual time stopped at " + clock.millis() + " ms: client threads " +
+			"wait for each other outside of the emulator (e.g. in Thread.join() " +
+			"or for a DatagramSocket used by another thread). only threads " +
+			"blocked in the emulator let the time move on", true);
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			Task due = null;
+			boolean checkStall = false;
+
+			synchronized (this)
+			{
+				long now = now();
+
+				if (size == 0)
+				{
+					// nothing in flight - wait for the first task
+					wakeAt = Long.MAX_VALUE;
+
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						// just ignore it
+					}
+
+					continue;
+				}
+
+				if (currentTick > now)
+				{
+					// sleep until the next slot needs to be processed
+					wakeAt = nextEvent();
+
+					if (clock.isVirtual())
+					{
+						if (clock.isIdle())
+						{
+							// nobody can send anything before the next event - 
+							// jump there
+							lastStallCheck = System.nanoTime();
+							stallReported = false;
+							clock.advanceTo(wakeAt);
+							continue;
+						}
+
+						checkStall = needsStallCheck();
+					}
+
+					if (!checkStall)
+					{
+						try
+						{
+							if (clock.isVirtual())
+								wait(IDLE_CHECK_INTERVAL);
+							else
+								wait(wakeAt - now);
+						}
+						catch (InterruptedException e)
+						{
+							// just ignore it
+						}
+
+						continue;
+					}
+				}
+				else
+				{
+					// catch up with the real time
+					while (currentTick <= now && due == null)
+						due = advance();
+
+					wakeAt = currentTick;
+				}
+			}
+
+			if (checkStall)
+			{
+				reportStall();
+				continue;
+			}
+
+			// run the due tasks without holding the lock of the wheel
+			while (due != null)
+			{
+				Task next = due.next;
+				due.next = null;
+
+				try
+				{
+					due.run();
+				}
+				catch (RuntimeException e)
+				{
+					// a broken task must not stop all other deliveries
+					e.printStackTrace();
+				}
+
+				due = next;
+			}
+		}
+	}
+
+	// base class of everything that can be scheduled. subclasses are linked
+	// directly into the wheel, so scheduling does not allocate anything else
+	public static abstract class Task
+	{
+		long deadline;
+		Task next;
+
+		// where the task is in the wheel, valid while it is queued
+		int level;
+		int slot;
+		boolean queued = false;
+
+		public abstract void run();
+	}
+}
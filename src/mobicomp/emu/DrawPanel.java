@@ -3,8 +3,12 @@ package mobicomp.emu;
 /*
  * DrawPanel
  * 
- * this class has two tasks: it implements the interface Graph and it draws the
- * current graph in the GUI. the drawpanel is the left side of the main window
+ * this class draws the current graph in the GUI and lets the user edit it with
+ * the mouse. the graph itself is kept by the GraphModel - the drawpanel just
+ * listens to its changes. the drawpanel is the left side of the main window
+ *
+ * all drawing of nodes and links is done here, so the classes of the model
+ * (GraphModel, Client, Link) don't need any GUI classes
  *  
  */
 
@@ -13,29 +17,52 @@ import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
 
-import java.util.Vector;
 import java.util.Iterator;
+import java.util.WeakHashMap;
 
-public class DrawPanel extends JPanel implements Graph {
-	// minimal distance between two nodes (*r)
-	// must be greater or equal to 3 + 2*sqrt(2)
-
-	// public static final double MIN_DISTANCE = (3+2*Math.sqrt(2));
-	public static final double MIN_DISTANCE = 7.5;
-
+public class DrawPanel extends JPanel implements GraphListener {
 	// background color of the panel
 	public static final Color BACKGROUND = Color.white;
 
+	// colors of the nodes. SLEEPING_xxx means the corresponding program is
+	// not running yet
+	public static final Color RUNNING_CLIENT = new Color(0.5f, 0.5f, 1.0f);
+	public static final Color RUNNING_CLIENT_BORDER = new Color(0.0f, 0.0f, 1.0f);
+	public static final Color RUNNING_CLIENT_TEXT = new Color(0.0f, 0.0f, 0.0f);
+	public static final Color SLEEPING_CLIENT = new Color(1.0f, 0.5f, 0.5f);
+	public static final Color SLEEPING_CLIENT_BORDER = new Color(1.0f, 0.0f, 0.0f);
+	public static final Color SLEEPING_CLIENT_TEXT = new Color(0.0f, 0.0f, 0.0f);
+
+	// some constants for drawing the links
+	public static final Color RUNNING_LINK_COLOR = new Color(0.0f, 0.0f, 1.0f);
+	public static final Color SLEEPING_LINK_COLOR = new Color(1.0f, 0.0f, 0.0f);
+	public static final Color USED_LINK_COLOR = new Color(0.0f, 1.0f, 0.0f);
+	public static final int ARROW_LENGTH = 10;
+	public static final int ARROW_WIDTH = 8;
+	public static final int LINK_WIDTH = 2;
+
+	// two strokes for drawing the links
+	private static final BasicStroke normal = new BasicStroke(LINK_WIDTH);
+
+	private static final float dashPattern[] = { 8.0f };
+
+	private static final BasicStroke dashed = new BasicStroke(LINK_WIDTH, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10.0f, dashPattern, 0.0f);
+
+	// small buffers - we don't want to redraw the whole node each time
+	// (Client -> NodeImage)
+	private WeakHashMap nodeImages = new WeakHashMap();
+
+	// redraws the graph when the next link stops flashing
+	private Timer flashTimer;
+
 	// parent of this panel
 	private JFrame wnd;
 
 	// reference to the Emulator
 	private Emulator emu;
 
-	// lists of all nodes and all (closed!) links.
-	private Vector clients;
-
-	private Vector links;
+	// the graph shown in this panel
+	private Graph graph;
 
 	// here we save the link we are currently drawing (the open link)
 	private Link openLink = null;
@@ -47,8 +74,15 @@ public class DrawPanel extends JPanel implements Graph {
 		this.wnd = parent;
 		this.emu = Emulator.getRef();
 
-		clients = new Vector();
-		links = new Vector();
+		graph = emu.getGraph();
+		graph.addGraphListener(this);
+
+		flashTimer = new Timer(0, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				repaint();
+			}
+		});
+		flashTimer.setRepeats(false);
 
 		initWindow();
 	}
@@ -65,7 +99,7 @@ public class DrawPanel extends JPanel implements Graph {
 	// returns the client that intersects with the coordiate (x,y) or null
 	// otherwise
 	public Client getClientAt(int x, int y) {
-		for (Iterator iter = clients.iterator(); iter.hasNext();) {
+		for (Iterator iter = graph.getClients().iterator(); iter.hasNext();) {
 			Client curElem = (Client) iter.next();
 
 			if (curElem.intersects(x, y))
@@ -78,7 +112,7 @@ public class DrawPanel extends JPanel implements Graph {
 	// returns the link that intersects with the coordinate (x,y) or null
 	// otherwise
 	public Link getLinkEndingAt(int x, int y) {
-		for (Iterator iter = links.iterator(); iter.hasNext();) {
+		for (Iterator iter = graph.getLinks().iterator(); iter.hasNext();) {
 			Link curLnk = (Link) iter.next();
 
 			if (curLnk.hasEdgeAt(x, y)) {
@@ -89,7 +123,7 @@ public class DrawPanel extends JPanel implements Graph {
 	}
 	
 	public Link getLinkIntersecting(int x, int y){
-	    for (Iterator iter = links.iterator(); iter.hasNext();) {
+	    for (Iterator iter = graph.getLinks().iterator(); iter.hasNext();) {
 			Link curLnk = (Link) iter.next();
 
 			if (curLnk.intersects(x, y)) {
@@ -106,270 +140,229 @@ public class DrawPanel extends JPanel implements Graph {
 		super.paint(g);
 
 		// draw all nodes
-		for (Iterator iter = clients.iterator(); iter.hasNext();) {
-			((Client) iter.next()).draw(g, this);
+		for (Iterator iter = graph.getClients().iterator(); iter.hasNext();) {
+			drawClient(g, (Client) iter.next());
 		}
 
-		// draw all closed links
-		for (Iterator iter = links.iterator(); iter.hasNext();) {
-			((Link) iter.next()).draw(g);
-		}
-
-		// draw the open link, if there is one
-		if (openLink != null)
-			openLink.draw(g);
-	}
-
-	// moves a client to another position. if it would intersect with another
-	// client, the nearest non-intersection position is chosen
-	public void moveClient(Client node, int x, int y) {
-		if (node == null)
-			throw new NullPointerException();
-
-		// check for overlapping
-		if (!overlaps(node, x, y)) {
-			node.moveTo(x, y);
-			return;
-		}
+		// draw all closed links. the next one to stop flashing needs another
+		// redraw
+		long now = System.currentTimeMillis();
+		long nextFlashEnd = Long.MAX_VALUE;
 
-		// we have an intersection and need to find the nearest point
-		// without intersection. it get's very slow here...
+		for (Iterator iter = graph.getLinks().iterator(); iter.hasNext();) {
+			Link lnk = (Link) iter.next();
+			drawLink(g, lnk, now);
 
-		int distance = 1;
+			for (int i = 0; i < 2; i++) {
+				long until = lnk.getFlashingUntil(i == 0);
 
-		while (true) {
-			for (int i = 0; i < 2 * distance; i++) {
-				if (!overlaps(node, x - distance + i, y - distance)) {
-					node.moveTo(x - distance + i, y - distance);
-					return;
-				}
-
-				if (!overlaps(node, x + distance, y - distance + i)) {
-					node.moveTo(x + distance, y - distance + i);
-					return;
-				}
-
-				if (!overlaps(node, x + distance - i, y + distance)) {
-					node.moveTo(x + distance - i, y + distance);
-					return;
-				}
-
-				if (!overlaps(node, x - distance, y + distance - i)) {
-					node.moveTo(x - distance, y + distance - i);
-					return;
-				}
+				if (until > now && until < nextFlashEnd)
+					nextFlashEnd = until;
 			}
-
-			distance++;
 		}
 
-		// we will never reach this point
-	}
+		// draw the open link, if there is one
+		if (openLink != null)
+			drawLink(g, openLink, now);
 
-	// check wheter or not the coordinate (x,y) is a position for the client
-	// where it doesn't intersect with another client. this method is slow as
-	// hell - for a big graph, this must be rewritten using a fancy data
-	// structure
-	private boolean overlaps(Client node, int x, int y) {
-		for (Iterator iter = clients.iterator(); iter.hasNext();) {
-			Client nc = (Client) iter.next();
-
-			if ((nc != node)
-					&& (Math.pow(x - nc.getX(), 2) + Math.pow(y - nc.getY(), 2) < MIN_DISTANCE
-							* Math.pow(Client.RADIUS, 2)))
-				return true;
+		if (nextFlashEnd != Long.MAX_VALUE) {
+			flashTimer.setInitialDelay((int) (nextFlashEnd - now));
+			flashTimer.restart();
 		}
-
-		return false;
-	}
-
-	/* ********************** from interface Graph ************************** */
-	public void addClient(Client client) {
-		if (client == null)
-			throw new NullPointerException();
-
-		moveClient(client, client.getX(), client.getY());
-		clients.add(client);
-		repaint();
-	}
-
-	// remove a client from the graph
-	// 
-	// NOTE: it is assumed that this client has NO links and NO open sockets !
-	public void removeClient(Client client) {
-		clients.remove(client);
-		repaint();
 	}
 
-	// returns a client given its name or null if there is no client called name
-	public Client getClient(String name) {
-		for (Iterator iter = clients.iterator(); iter.hasNext();) {
-			Client cur = (Client) iter.next();
-
-			if (cur.getName().equals(name))
-				return cur;
+	// draw the node into g
+	//
+	// to speed up the drawing, the node is only painted the first time and
+	// saved in an image. every subsequent call just copies the image to g,
+	// until the name of the node or its state changes
+	private void drawClient(Graphics g, Client c) {
+		NodeImage img = (NodeImage) nodeImages.get(c);
+
+		if (img == null || !img.name.equals(c.getName()) || img.running != c.isRunning()) {
+			img = new NodeImage();
+			img.name = c.getName();
+			img.running = c.isRunning();
+			img.image = createImage(2 * Client.RADIUS, 2 * Client.RADIUS);
+
+			Graphics2D g2 = (Graphics2D) img.image.getGraphics();
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			drawClientOnce(g2, img.name, img.running);
+			g2.dispose();
+
+			nodeImages.put(c, img);
 		}
 
-		return null;
+		// copy the image over from the buffer
+		g.drawImage(img.image, c.getX() - Client.RADIUS, c.getY() - Client.RADIUS, null);
 	}
 
-	// returns a list of all names of the clients
-	public Vector getClientNames() {
-		Vector ret = new Vector();
-
-		for (Iterator iter = clients.iterator(); iter.hasNext();)
-			ret.add(((Client) iter.next()).getName());
-
-		return ret;
+	// draws a picture of a node
+	private void drawClientOnce(Graphics g, String name, boolean running) {
+		final int RADIUS = Client.RADIUS;
+		final int BORDER_WIDTH = Client.BORDER_WIDTH;
+		String displayedName = name;
+		FontMetrics fm = g.getFontMetrics();
+
+		// shorten the name if it is to long to display
+		while (fm.stringWidth(displayedName) > 2 * (RADIUS - BORDER_WIDTH))
+			displayedName = displayedName.substring(0, displayedName.length() - 1);
+
+		// offsets to place the text nicely in the middle of the circle
+		int strOffsetX = fm.stringWidth(displayedName) / 2;
+		int strOffsetY = fm.getMaxAscent() - (fm.getMaxAscent() + fm.getMaxDescent()) / 2;
+
+		// draw background
+		g.setColor(BACKGROUND);
+		g.fillRect(0, 0, 2 * RADIUS, 2 * RADIUS);
+
+		// draw the node
+		g.setColor(running ? RUNNING_CLIENT_BORDER : SLEEPING_CLIENT_BORDER);
+		g.fillOval(0, 0, 2 * RADIUS, 2 * RADIUS);
+		g.setColor(running ? RUNNING_CLIENT : SLEEPING_CLIENT);
+		g.fillOval(BORDER_WIDTH, BORDER_WIDTH, 2 * (RADIUS - BORDER_WIDTH), 2 * (RADIUS - BORDER_WIDTH));
+		g.setColor(running ? RUNNING_CLIENT_TEXT : SLEEPING_CLIENT_TEXT);
+		g.drawString(displayedName, RADIUS - strOffsetX, RADIUS + strOffsetY);
 	}
 
-	// add a new client
-	public Client createClient() {
-		return new Client(emu.getNextNodeName(), 100, 100);
-	}
+	// draw a link. now is the current time (to find out whether its arrows 
+	// flash)
+	private void drawLink(Graphics g1D, Link lnk, long now) {
+		Client start = lnk.getStart();
+		Client end = lnk.getEnd();
 
-	// add a new client at a default position
-	public Client createClient(String name) {
-		return new Client(name, 100, 100);
-	}
+		// calculate start- & endpoint and link length
+		Point s = new Point(start.getX(), start.getY());
+		Point e;
+		double dist;
 
-	// add a new client
-	public Client createClient(String name, String className, String params,
-			String classpath) {
-		return new Client(name, className, params, classpath, 100, 100);
-	}
+		if (end == null) {
+			e = new Point(lnk.getOpenX(), lnk.getOpenY());
 
-	// add a new client with a default name
-	public Client createClient(int x, int y) {
-		return new Client(emu.getNextNodeName(), x, y);
-	}
-
-	// add a new client
-	public Client createClient(String name, int x, int y) {
-		return new Client(name, x, y);
-	}
-
-	// add a new client
-	public Client createClient(String name, String className, String params,
-			String classpath, int x, int y) {
-		return new Client(name, className, params, classpath, x, y);
-	}
-
-	public void addLink(Link link) {
-		if (link == null)
-			throw new NullPointerException();
-
-		links.add(link);
-		link.getStart().addLink(link);
-		if (link.isBidirectional()) {
-			link.getEnd().addLink(link);
-		}
-		repaint();
-	}
-
-	public void removeLink(Link link) {
-		if (link == null)
-			throw new NullPointerException();
-
-		links.remove(link);
-		link.getStart().removeLink(link);
-		link.getEnd().removeLink(link);
-		repaint();
-	}
-
-	public Link getLink(Client c1, Client c2) {
-		if (c1 == null || c2 == null)
-			throw new NullPointerException();
+			// don't draw an open link if the end is inside of its startpoint
+			if (e.distance(s) < Client.RADIUS)
+				return;
 
-		for (Iterator iter = links.iterator(); iter.hasNext();) {
-			Link curLink = (Link) iter.next();
-
-			if (curLink.conntects(c1, c2))
-				return curLink;
+			dist = s.distance(e) + Client.RADIUS;
+		} else {
+			e = new Point(end.getX(), end.getY());
+			dist = s.distance(e);
 		}
 
-		return null;
-	}
+		// activate anti aliasing
+		Graphics2D g = (Graphics2D) g1D;
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-	// create a new closed link
-	public Link createLink(Client src, Client dest) {
-		if (src == null || dest == null)
-			throw new NullPointerException();
+		// set correct color
+		if ((end != null) && start.isRunning() && end.isRunning())
+			g.setColor(RUNNING_LINK_COLOR);
+		else
+			g.setColor(SLEEPING_LINK_COLOR);
 
-		return new Link(src, dest);
-	}
+		int fact = 1; //  fact = +/- 1 (needed if s not on the left of e)
 
-	// create a new open link
-	public Link createLink(Client src, int destx, int desty) {
-		return new Link(src, destx, desty);
-	}
+		if (s.x > e.x)
+			fact = -1;
 
-	// return true if c1 and c2 are linked in the graph, false otherwise
-	public boolean isLinked(Client c1, Client c2) {
-		if (c1 == null || c2 == null)
-			throw new NullPointerException();
+		// rotate g so that we can draw horizontally
+		double theta = Math.atan(((float) (e.y - s.y)) / (e.x - s.x));
+		g.rotate(theta, s.x, s.y);
 
-		for (Iterator iter = c1.getLinks().iterator(); iter.hasNext();) {
-			Link curLnk = (Link) iter.next();
+		// draw the link
+		Stroke old = g.getStroke();
 
-			if ((curLnk.getStart() == c2) || (curLnk.getEnd() == c2)) {
-				return true;
+		if (lnk.getErrorType() == Link.NO_ERROR) {
+			g.setStroke(normal);
+		} else {
+			g.setStroke(dashed);
+		}
+		if (lnk.isBidirectional()) {
+			g.drawLine(s.x + fact * (Client.RADIUS + ARROW_LENGTH), s.y, (s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH)), s.y);
+		} else {
+			g.drawLine(s.x + fact * Client.RADIUS, s.y, (s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH)), s.y);
+		}
+		g.setStroke(old);
+
+		// draw the arrows
+		//
+		//  /| |\ ^ W = ARROW_WIDTH
+		// < ------ > W L = ARROW_LENGTH
+		//  \| |/ v
+		//
+		// <L>
+		// <-- dist -->
+
+		int arrowX[] = new int[3];
+		int arrowY[] = new int[3];
+
+		arrowX[0] = s.x + fact * (Client.RADIUS);
+		arrowX[1] = s.x + fact * (Client.RADIUS + ARROW_LENGTH);
+		arrowX[2] = s.x + fact * (Client.RADIUS + ARROW_LENGTH);
+
+		arrowY[0] = s.y;
+		arrowY[1] = s.y - ARROW_WIDTH / 2;
+		arrowY[2] = s.y + ARROW_WIDTH / 2;
+
+		if (lnk.isBidirectional()) {
+			if (lnk.getFlashingUntil(true) > now) {
+				g.setColor(USED_LINK_COLOR);
+				g.fillPolygon(arrowX, arrowY, 3);
+				g.setColor(RUNNING_LINK_COLOR);
+			} else {
+				g.fillPolygon(arrowX, arrowY, 3);
 			}
 		}
 
-		// if unidirectional links exist...
-		for (Iterator iter = c2.getLinks().iterator(); iter.hasNext();) {
-			Link curLnk = (Link) iter.next();
+		arrowX[0] = s.x + fact * ((int) dist - Client.RADIUS);
+		arrowX[1] = s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH);
+		arrowX[2] = s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH);
 
-			if ((curLnk.getStart() == c1) || (curLnk.getEnd() == c1)) {
-				return true;
-			}
+		if (lnk.getFlashingUntil(false) > now) {
+			g.setColor(USED_LINK_COLOR);
+			g.fillPolygon(arrowX, arrowY, 3);
+			g.setColor(RUNNING_LINK_COLOR);
+		} else {
+			g.fillPolygon(arrowX, arrowY, 3);
 		}
 
-		return false;
-	}
-
-	public int getNumberOfClients() {
-		return clients.size();
-	}
+		// write delay & packet info to the link
+		if (end != null) {
+			// write delay above the link
+			String delayText = Integer.toString(lnk.getDelay()) + " ms";
 
-	public int getNumberOfLinks() {
-		return links.size();
-	}
+			if (delayText.equals("0 ms")) {
+				delayText = "no delay";
+			}
 
-	public Vector getClients() {
-		return clients;
-	}
+			int delayWidth = g.getFontMetrics().stringWidth(delayText);
 
-	public Vector getLinks() {
-		return links;
-	}
+			// draw the text only if there is enough space
+			if (delayWidth < dist - 2 * Client.RADIUS)
+				g.drawString(delayText, (int) (s.x + fact * dist / 2 - delayWidth / 2), s.y - 8);
 
-	// reset the graph (= remove all links and nodes)
-	public void reset() {
-		while (!clients.isEmpty()) {
-			emu.removeClient((Client) clients.firstElement());
-		}
-	}
+			// write sent/lost packets below the link
+			String packetText = "sent: " + Integer.toString(lnk.getSuccCount()) + " lost: " + Integer.toString(lnk.getLostCount());
 
-	// start all clients that are not running yet
-	public void startAllClients() {
-		boolean done = false;
+			String packetTextShort = Integer.toString(lnk.getSuccCount()) + " / " + Integer.toString(lnk.getLostCount());
 
-		// iterate over all clients and try to start them
-		for (Iterator iter = clients.iterator(); iter.hasNext();) {
-			Client cur = (Client) iter.next();
+			int packetWidth = g.getFontMetrics().stringWidth(packetText);
+			int packetWidthShort = g.getFontMetrics().stringWidth(packetTextShort);
 
-			if (!cur.isRunning()) {
-				// try to start it
-				while (!emu.startClient(cur)) {
-					// retry until it works
-				}
-			}
+			// draw the text only if there is enough space
+			if (packetWidth < dist - 2 * Client.RADIUS)
+				g.drawString(packetText, (int) (s.x + fact * dist / 2 - packetWidth / 2), s.y + 15);
+			else if (packetWidthShort < dist - 2 * Client.RADIUS)
+				g.drawString(packetTextShort, (int) (s.x + fact * dist / 2 - packetWidthShort / 2), s.y + 15);
 		}
+
+		// rotate g back
+		g.rotate(-theta, s.x, s.y);
 	}
 
-	/* ********************* end of interface Graph ************************* */
+	/* ******************** from interface GraphListener ******************* */
+	public void graphChanged(Graph graph) {
+		repaint();
+	}
 
 	// the mouse listener of the drawpanel
 	private class myMouseListener implements MouseInputListener {
@@ -389,11 +382,11 @@ public class DrawPanel extends JPanel implements Graph {
 				//clicked an empty space -> new node
 				if ((selClient == null) && (selLink == null)) {
 					// add new element
-					Client newClient = createClient(e.getX(), e.getY());
+					Client newClient = graph.createClient(e.getX(), e.getY());
 					EditClientWindow ecWnd = new EditClientWindow(wnd,
 							newClient);
 					if (!ecWnd.isCanceled()) {
-						addClient(newClient);
+						graph.addClient(newClient);
 					} else {
 						emu.rewindNextNodeName();
 					}
@@ -436,7 +429,7 @@ public class DrawPanel extends JPanel implements Graph {
 					openLink = getLinkEndingAt(e.getX(), e.getY());
 
 					if (openLink != null) {
-						removeLink(openLink);
+						graph.removeLink(openLink);
 						openLink.setOpen(openLink.getPointNear(e.getX(), e
 								.getY()));
 					}
@@ -459,9 +452,9 @@ public class DrawPanel extends JPanel implements Graph {
 					openLink.setEndpoint(end);
 
 					if ((openLink.getStart() != openLink.getEnd())
-							&& (!isLinked(openLink.getStart(), openLink
+							&& (!graph.isLinked(openLink.getStart(), openLink
 									.getEnd())))
-						addLink(openLink);
+						graph.addLink(openLink);
 
 					openLink = null;
 				}
@@ -473,7 +466,7 @@ public class DrawPanel extends JPanel implements Graph {
 
 		public void mouseDragged(MouseEvent e) {
 			if (selectedNode != null) {
-				moveClient(selectedNode, e.getX(), e.getY());
+				graph.moveClient(selectedNode, e.getX(), e.getY());
 				repaint();
 			} else if (openLink != null) {
 				openLink.setEndpoint(e.getX(), e.getY());
@@ -485,4 +478,13 @@ public class DrawPanel extends JPanel implements Graph {
 			// we don't care about that
 		}
 	}
+
+	// the picture of a node and the state it shows
+	private static class NodeImage {
+		public Image image;
+
+		public String name;
+
+		public boolean running;
+	}
 }
\ No newline at end of file
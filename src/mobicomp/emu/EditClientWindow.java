@@ -221,7 +221,7 @@ public class EditClientWindow extends JDialog implements ActionListener
 						}
 						while (graph.getClient(newname) != null);
 					}
-					client.setName(newname);
+					graph.renameClient(client, newname);
 				}
 			}
 
@@ -0,0 +1,1098 @@
+package mobicomp.emu;
+
+/*
+ * EmuDatagramChannel
+ *
+ * a java.nio.channels.DatagramChannel sending and receiving through the
+ * emulator. it's created by the EmuSelectorProvider whenever a client calls
+ * DatagramChannel.open(). internally, every channel uses an EmuSocket, so
+ * the packets take the same way as the packets of a MulticastSocket: through
+ * the links, their delays and errors, into the queue of the socket.
+ *
+ * a channel can be used in blocking mode (like a socket) or in non-blocking
+ * mode together with an EmuSelector.
+ *
+ * socket() returns a DatagramSocket working on the channel. multicast 
+ * sources are filtered by the channel: packets to a group it joined are 
+ * thrown away when they are received if the membership keys of the group 
+ * don't let their source in. a node has only one interface, so the 
+ * interface given to join() is remembered, but not used.
+ *
+ * socket options are accepted and returned, but only SO_RCVBUF and 
+ * IP_MULTICAST_LOOP have an effect
+ *
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.DatagramPacket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketOptions;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.MulticastChannel;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class EmuDatagramChannel extends DatagramChannel
+{
+	// the socket doing the real work
+	private EmuSocket socket;
+
+	// local and remote address (null if not bound/connected)
+	private volatile InetSocketAddress localAddress = null;
+	private volatile InetSocketAddress remoteAddress = null;
+
+	// values of the socket options
+	private HashMap options = new HashMap();
+
+	// groups joined by this channel (group -> List of membership keys: one
+	// key for any source or one key per source)
+	private HashMap memberships = new HashMap();
+	
+	// the socket returned by socket(), created when it's asked for first
+	private DatagramSocket adaptor = null;
+
+	// the selection keys of all selectors this channel is registered with.
+	// they are notified as soon as a packet arrives
+	private List selectionKeys = new CopyOnWriteArrayList();
+
+	// the options supported by the channel
+	private static final Set OPTIONS = new HashSet();
+
+	static
+	{
+		OPTIONS.add(StandardSocketOptions.SO_SNDBUF);
+		OPTIONS.add(StandardSocketOptions.SO_RCVBUF);
+		OPTIONS.add(StandardSocketOptions.SO_REUSEADDR);
+		OPTIONS.add(StandardSocketOptions.SO_BROADCAST);
+		OPTIONS.add(StandardSocketOptions.IP_TOS);
+		OPTIONS.add(StandardSocketOptions.IP_MULTICAST_IF);
+		OPTIONS.add(StandardSocketOptions.IP_MULTICAST_TTL);
+		OPTIONS.add(StandardSocketOptions.IP_MULTICAST_LOOP);
+	}
+
+	public EmuDatagramChannel(SelectorProvider provider)
+	{
+		super(provider);
+
+		// the owner of the socket is the client of the current thread
+		socket = new EmuSocket();
+		socket.create();
+
+		socket.setPacketListener(new PacketListener()
+		{
+			public void packetArrived(EmuSocket s)
+			{
+				for (Iterator iter = selectionKeys.iterator(); iter.hasNext(); )
+				{
+					EmuSelectionKey key = (EmuSelectionKey) iter.next();
+					((EmuSelector) key.selector()).keyReadable(key);
+				}
+			}
+		});
+	}
+
+	/* ************************ used by the EmuSelector ********************* */
+
+	// true if there is a packet to receive
+	boolean isReadable()
+	{
+		return socket.available() > 0;
+	}
+
+	void addSelectionKey(EmuSelectionKey key)
+	{
+		selectionKeys.add(key);
+	}
+
+	void removeSelectionKey(EmuSelectionKey key)
+	{
+		selectionKeys.remove(key);
+	}
+
+	/* ************************** from DatagramChannel ********************** */
+
+	public DatagramChannel bind(SocketAddress local) throws IOException
+	{
+		synchronized (this)
+		{
+			if (!isOpen())
+				throw new ClosedChannelException();
+
+			if (localAddress != null)
+				throw new AlreadyBoundException();
+
+			InetSocketAddress addr;
+
+			if (local == null)
+				addr = new InetSocketAddress(0);
+			else if (local instanceof InetSocketAddress)
+				addr = (InetSocketAddress) local;
+			else
+				throw new UnsupportedAddressTypeException();
+
+			// port 0 gets an ephemeral port
+			socket.bind(addr.getPort(), addr.getAddress());
+			localAddress = new InetSocketAddress(addr.getAddress(), socket.getLocalPort());
+		}
+
+		return this;
+	}
+
+	// channels are bound automatically when they are used first
+	private void ensureBound() throws IOException
+	{
+		synchronized (this)
+		{
+			if (localAddress == null)
+				bind(null);
+		}
+	}
+
+	public SocketAddress getLocalAddress() throws IOException
+	{
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		return localAddress;
+	}
+
+	public DatagramChannel setOption(SocketOption name, Object value)
+		throws IOException
+	{
+		if (!OPTIONS.contains(name))
+			throw new UnsupportedOperationException("'" + name + "' not supported");
+
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		synchronized (options)
+		{
+			options.put(name, value);
+		}
+
+		if (name == StandardSocketOptions.SO_RCVBUF)
+			socket.setOption(SocketOptions.SO_RCVBUF, value);
+
+		// the socket uses the inverted meaning of MulticastSocket
+		if (name == StandardSocketOptions.IP_MULTICAST_LOOP)
+		{
+			socket.setOption(SocketOptions.IP_MULTICAST_LOOP,
+				Boolean.valueOf(!((Boolean) value).booleanValue()));
+		}
+
+		return this;
+	}
+
+	public Object getOption(SocketOption name) throws IOException
+	{
+		if (!OPTIONS.contains(name))
+			throw new UnsupportedOperationException("'" + name + "' not supported");
+
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		if (name == StandardSocketOptions.SO_RCVBUF)
+			return socket.getOption(SocketOptions.SO_RCVBUF);
+
+		if (name == StandardSocketOptions.IP_MULTICAST_LOOP)
+			return Boolean.valueOf(socket.isMulticastLoop());
+
+		synchronized (options)
+		{
+			return options.get(name);
+		}
+	}
+
+	public Set supportedOptions()
+	{
+		return OPTIONS;
+	}
+
+	public DatagramSocket socket()
+	{
+		synchronized (this)
+		{
+			if (adaptor == null)
+				adaptor = new SocketAdaptor();
+			
+			return adaptor;
+		}
+	}
+
+	public boolean isConnected()
+	{
+		return remoteAddress != null;
+	}
+
+	public DatagramChannel connect(SocketAddress remote) throws IOException
+	{
+		if (!(remote instanceof InetSocketAddress))
+			throw new UnsupportedAddressTypeException();
+
+		synchronized (this)
+		{
+			if (!isOpen())
+				throw new ClosedChannelException();
+
+			if (remoteAddress != null)
+				throw new AlreadyConnectedException();
+
+			ensureBound();
+
+			remoteAddress = (InetSocketAddress) remote;
+			socket.connect(remoteAddress.getAddress(), remoteAddress.getPort());
+		}
+
+		return this;
+	}
+
+	public DatagramChannel disconnect() throws IOException
+	{
+		synchronized (this)
+		{
+			remoteAddress = null;
+			socket.disconnect();
+		}
+
+		return this;
+	}
+
+	public SocketAddress getRemoteAddress() throws IOException
+	{
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		return remoteAddress;
+	}
+
+	public SocketAddress receive(ByteBuffer dst) throws IOException
+	{
+		Payload packet = nextPacket(0);
+
+		if (packet == null)
+			return null;
+
+		try
+		{
+			packet.copyTo(dst);
+			return new InetSocketAddress(packet.getSourceAddress(), packet.getSourcePort());
+		}
+		finally
+		{
+			packet.release();
+		}
+	}
+
+	public int send(ByteBuffer src, SocketAddress target) throws IOException
+	{
+		if (!(target instanceof InetSocketAddress))
+			throw new UnsupportedAddressTypeException();
+
+		InetSocketAddress addr = (InetSocketAddress) target;
+
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		InetSocketAddress remote = remoteAddress;
+
+		if (remote != null && !remote.equals(addr))
+			throw new IllegalArgumentException(
+				"connected address and target address differ");
+
+		ensureBound();
+
+		// the only copy of the data
+		int len = src.remaining();
+		Payload packet = new Payload(src, addr.getAddress(), addr.getPort(),
+			Emulator.getRef().getNodeAddress(socket), socket.getLocalPort());
+
+		try
+		{
+			Emulator.getRef().send(socket, packet);
+		}
+		finally
+		{
+			packet.release();
+		}
+
+		return len;
+	}
+
+	public int read(ByteBuffer dst) throws IOException
+	{
+		if (!isConnected())
+			throw new NotYetConnectedException();
+
+		Payload packet = nextPacket(0);
+
+		if (packet == null)
+			return 0;
+
+		try
+		{
+			return packet.copyTo(dst);
+		}
+		finally
+		{
+			packet.release();
+		}
+	}
+
+	public long read(ByteBuffer[] dsts, int offset, int length)
+		throws IOException
+	{
+		if (!isConnected())
+			throw new NotYetConnectedException();
+
+		Payload packet = nextPacket(0);
+
+		if (packet == null)
+			return 0;
+
+		try
+		{
+			// scatter the data over the buffers
+			ByteBuffer data = ByteBuffer.wrap(packet.getData());
+			long read = 0;
+
+			for (int i = offset; i < offset + length && data.hasRemaining(); i++)
+			{
+				int n = Math.min(dsts[i].remaining(), data.remaining());
+				ByteBuffer part = data.slice();
+				part.limit(n);
+				dsts[i].put(part);
+				data.position(data.position() + n);
+				read += n;
+			}
+
+			return read;
+		}
+		finally
+		{
+			packet.release();
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException
+	{
+		InetSocketAddress remote = remoteAddress;
+
+		if (remote == null)
+			throw new NotYetConnectedException();
+
+		return send(src, remote);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length)
+		throws IOException
+	{
+		InetSocketAddress remote = remoteAddress;
+
+		if (remote == null)
+			throw new NotYetConnectedException();
+
+		// gather all buffers into one packet
+		int total = 0;
+
+		for (int i = offset; i < offset + length; i++)
+			total += srcs[i].remaining();
+
+		ByteBuffer packet = ByteBuffer.allocate(total);
+
+		for (int i = offset; i < offset + length; i++)
+			packet.put(srcs[i]);
+
+		packet.flip();
+		return send(packet, remote);
+	}
+
+	// the next packet. in blocking mode, this waits for a packet (at most 
+	// timeout ms, 0 for infinity), otherwise it returns null if there is 
+	// none. the caller must release() the packet
+	private Payload nextPacket(int timeout) throws IOException
+	{
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		ensureBound();
+
+		while (true)
+		{
+			Payload packet;
+			
+			if (!isBlocking())
+			{
+				packet = socket.poll();
+				
+				if (packet == null)
+					return null;
+			}
+			else
+			{
+				// an interrupt or close() while waiting closes the socket, 
+				// which ends the wait
+				boolean completed = false;
+				
+				begin();
+				
+				try
+				{
+					packet = socket.receivePayload(timeout);
+					completed = true;
+				}
+				finally
+				{
+					end(completed);
+				}
+			}
+			
+			if (accepts(packet))
+				return packet;
+			
+			// the memberships don't let the source in
+			packet.release();
+		}
+	}
+	
+	// false if packet went to a group joined by the channel and its source 
+	// is blocked or isn't one of the sources joined
+	private boolean accepts(Payload packet)
+	{
+		if (!packet.getAddress().isMulticastAddress())
+			return true;
+		
+		synchronized (memberships)
+		{
+			List keys = (List) memberships.get(packet.getAddress());
+			
+			if (keys == null)
+				return true;
+			
+			InetAddress source = packet.getSourceAddress();
+			
+			for (Iterator iter = keys.iterator(); iter.hasNext(); )
+			{
+				EmuMembershipKey key = (EmuMembershipKey) iter.next();
+				
+				if (key.source == null)
+					return !key.blocked.contains(source);
+				
+				if (key.source.equals(source))
+					return true;
+			}
+			
+			return false;
+		}
+	}
+
+	/* ************************** from MulticastChannel ********************* */
+
+	public MembershipKey join(InetAddress group, NetworkInterface interf)
+		throws IOException
+	{
+		return join(group, interf, null);
+	}
+
+	// source is null to join for packets from any source
+	public MembershipKey join(InetAddress group, NetworkInterface interf,
+		InetAddress source) throws IOException
+	{
+		if (!group.isMulticastAddress())
+			throw new IllegalArgumentException("not a multicast address");
+		
+		if (source != null && (source.isAnyLocalAddress() ||
+			source.isMulticastAddress() || 
+			source.getClass() != group.getClass()))
+			throw new IllegalArgumentException("invalid source address");
+
+		if (!isOpen())
+			throw new ClosedChannelException();
+
+		ensureBound();
+
+		synchronized (memberships)
+		{
+			List keys = (List) memberships.get(group);
+
+			if (keys == null)
+			{
+				keys = new ArrayList();
+				memberships.put(group, keys);
+				socket.join(group);
+			}
+			
+			for (Iterator iter = keys.iterator(); iter.hasNext(); )
+			{
+				EmuMembershipKey key = (EmuMembershipKey) iter.next();
+				
+				// a group is joined either for any source or for single ones
+				if ((key.source == null) != (source == null))
+					throw new IllegalStateException(source == null ?
+						"group already joined for single sources" :
+						"group already joined for any source");
+				
+				if (source == null || key.source.equals(source))
+					return key;
+			}
+
+			EmuMembershipKey key = new EmuMembershipKey(group, interf, source);
+			keys.add(key);
+
+			return key;
+		}
+	}
+	
+	// the key joining group for any source (null if there is none)
+	private EmuMembershipKey findKey(InetAddress group)
+	{
+		synchronized (memberships)
+		{
+			List keys = (List) memberships.get(group);
+			
+			if (keys == null || ((EmuMembershipKey) keys.get(0)).source != null)
+				return null;
+			
+			return (EmuMembershipKey) keys.get(0);
+		}
+	}
+
+	/* ********************* from AbstractSelectableChannel ***************** */
+
+	protected void implCloseSelectableChannel() throws IOException
+	{
+		// wakes up a blocked receiver, too
+		socket.close();
+
+		synchronized (memberships)
+		{
+			for (Iterator iter = memberships.values().iterator(); iter.hasNext(); )
+			{
+				List keys = (List) iter.next();
+				
+				for (int i = 0; i < keys.size(); i++)
+					((EmuMembershipKey) keys.get(i)).valid = false;
+			}
+
+			memberships.clear();
+		}
+	}
+
+	protected void implConfigureBlocking(boolean block) throws IOException
+	{
+		// nothing to do - nextPacket() checks the mode on every call
+	}
+
+	/* *********************** private classes ****************************** */
+
+	// membership of the channel in a multicast group, for any source or for
+	// a single one
+	private class EmuMembershipKey extends MembershipKey
+	{
+		private InetAddress group;
+		private NetworkInterface interf;
+		private InetAddress source;
+		private boolean valid = true;
+		
+		// the sources blocked by a key for any source
+		private Set blocked = new HashSet();
+
+		EmuMembershipKey(InetAddress group, NetworkInterface interf,
+			InetAddress source)
+		{
+			this.group = group;
+			this.interf = interf;
+			this.source = source;
+		}
+
+		public boolean isValid()
+		{
+			return valid;
+		}
+
+		public void drop()
+		{
+			synchronized (memberships)
+			{
+				if (!valid)
+					return;
+
+				valid = false;
+				
+				List keys = (List) memberships.get(group);
+				keys.remove(this);
+				
+				// the socket stays in the group until the last key is dropped
+				if (keys.isEmpty())
+				{
+					memberships.remove(group);
+					socket.leave(group);
+				}
+			}
+		}
+
+		public MembershipKey block(InetAddress source) throws IOException
+		{
+			if (this.source != null)
+				throw new IllegalStateException("key is source-specific");
+			
+			if (source.isAnyLocalAddress() || source.isMulticastAddress() ||
+				source.getClass() != group.getClass())
+				throw new IllegalArgumentException("invalid source address");
+			
+			synchronized (memberships)
+			{
+				if (!valid)
+					throw new IllegalStateException("key is no longer valid");
+				
+				blocked.add(source);
+			}
+			
+			return this;
+		}
+
+		public MembershipKey unblock(InetAddress source)
+		{
+			synchronized (memberships)
+			{
+				if (!blocked.remove(source))
+					throw new IllegalStateException("source is not blocked");
+			}
+			
+			return this;
+		}
+
+		public MulticastChannel channel()
+		{
+			return EmuDatagramChannel.this;
+		}
+
+		public InetAddress group()
+		{
+			return group;
+		}
+
+		public NetworkInterface networkInterface()
+		{
+			return interf;
+		}
+
+		public InetAddress sourceAddress()
+		{
+			return source;
+		}
+	}
+	
+	// the DatagramSocket returned by socket(). all calls go to the channel,
+	// so the socket and the channel always agree. like the socket of a
+	// platform channel, it only sends and receives in blocking mode
+	private class SocketAdaptor extends DatagramSocket
+	{
+		// SO_TIMEOUT of the socket. the channel itself never times out
+		private volatile int timeout = 0;
+		
+		SocketAdaptor()
+		{
+			// the impl is only kept, never used - every public method of 
+			// DatagramSocket is overridden
+			super(socket);
+		}
+		
+		public void bind(SocketAddress local) throws SocketException
+		{
+			try
+			{
+				EmuDatagramChannel.this.bind(local);
+			}
+			catch (AlreadyBoundException e)
+			{
+				throw new SocketException("already bound");
+			}
+			catch (UnsupportedAddressTypeException e)
+			{
+				throw new IllegalArgumentException("unsupported address type");
+			}
+			catch (IOException e)
+			{
+				throw toSocketException(e);
+			}
+		}
+		
+		public void connect(InetAddress address, int port)
+		{
+			try
+			{
+				connect(new InetSocketAddress(address, port));
+			}
+			catch (SocketException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		public void connect(SocketAddress remote) throws SocketException
+		{
+			if (!(remote instanceof InetSocketAddress))
+				throw new IllegalArgumentException("unsupported address type");
+			
+			try
+			{
+				EmuDatagramChannel.this.connect(remote);
+			}
+			catch (AlreadyConnectedException e)
+			{
+				throw new SocketException("already connected");
+			}
+			catch (IOException e)
+			{
+				throw toSocketException(e);
+			}
+		}
+		
+		public void disconnect()
+		{
+			try
+			{
+				EmuDatagramChannel.this.disconnect();
+			}
+			catch (IOException e)
+			{
+				// can't happen - disconnect() doesn't do any I/O
+			}
+		}
+		
+		public boolean isBound()
+		{
+			return localAddress != null;
+		}
+		
+		public boolean isConnected()
+		{
+			return remoteAddress != null;
+		}
+		
+		public InetAddress getInetAddress()
+		{
+			InetSocketAddress remote = remoteAddress;
+			return remote == null ? null : remote.getAddress();
+		}
+		
+		public int getPort()
+		{
+			InetSocketAddress remote = remoteAddress;
+			return remote == null ? -1 : remote.getPort();
+		}
+		
+		public SocketAddress getRemoteSocketAddress()
+		{
+			return remoteAddress;
+		}
+		
+		public SocketAddress getLocalSocketAddress()
+		{
+			return isClosed() ? null : localAddress;
+		}
+		
+		// the address of the node if the socket is bound to the wildcard
+		// address, just like EmuSocket tells it
+		public InetAddress getLocalAddress()
+		{
+			if (isClosed())
+				return null;
+			
+			if (localAddress == null)
+				return new InetSocketAddress(0).getAddress();
+			
+			return (InetAddress) socket.getOption(SocketOptions.SO_BINDADDR);
+		}
+		
+		public int getLocalPort()
+		{
+			if (isClosed())
+				return -1;
+			
+			return localAddress == null ? 0 : socket.getLocalPort();
+		}
+		
+		public void send(DatagramPacket p) throws IOException
+		{
+			if (!isBlocking())
+				throw new IllegalBlockingModeException();
+			
+			// a connected socket may leave out the address
+			SocketAddress target = remoteAddress;
+			
+			if (p.getAddress() != null)
+				target = p.getSocketAddress();
+			
+			if (target == null)
+				throw new IllegalArgumentException("address not set");
+			
+			synchronized (p)
+			{
+				try
+				{
+					EmuDatagramChannel.this.send(ByteBuffer.wrap(p.getData(), 
+						p.getOffset(), p.getLength()), target);
+				}
+				catch (ClosedChannelException e)
+				{
+					throw new SocketException("socket is closed");
+				}
+			}
+		}
+		
+		public void receive(DatagramPacket p) throws IOException
+		{
+			if (!isBlocking())
+				throw new IllegalBlockingModeException();
+			
+			Payload packet;
+			
+			try
+			{
+				packet = nextPacket(timeout);
+			}
+			catch (ClosedChannelException e)
+			{
+				throw new SocketException("socket is closed");
+			}
+			
+			synchronized (p)
+			{
+				packet.copyTo(p);
+			}
+			
+			packet.release();
+		}
+		
+		public void setSoTimeout(int timeout) throws SocketException
+		{
+			if (timeout < 0)
+				throw new IllegalArgumentException("timeout < 0");
+			
+			if (isClosed())
+				throw new SocketException("socket is closed");
+			
+			this.timeout = timeout;
+		}
+		
+		public int getSoTimeout() throws SocketException
+		{
+			if (isClosed())
+				throw new SocketException("socket is closed");
+			
+			return timeout;
+		}
+		
+		public void setSendBufferSize(int size) throws SocketException
+		{
+			if (size <= 0)
+				throw new IllegalArgumentException("invalid send size");
+			
+			setIntOption(StandardSocketOptions.SO_SNDBUF, size);
+		}
+		
+		public int getSendBufferSize() throws SocketException
+		{
+			return getIntOption(StandardSocketOptions.SO_SNDBUF, 0);
+		}
+		
+		public void setReceiveBufferSize(int size) throws SocketException
+		{
+			if (size <= 0)
+				throw new IllegalArgumentException("invalid receive size");
+			
+			setIntOption(StandardSocketOptions.SO_RCVBUF, size);
+		}
+		
+		public int getReceiveBufferSize() throws SocketException
+		{
+			return getIntOption(StandardSocketOptions.SO_RCVBUF, 0);
+		}
+		
+		public void setReuseAddress(boolean on) throws SocketException
+		{
+			setBooleanOption(StandardSocketOptions.SO_REUSEADDR, on);
+		}
+		
+		public boolean getReuseAddress() throws SocketException
+		{
+			return getBooleanOption(StandardSocketOptions.SO_REUSEADDR);
+		}
+		
+		public void setBroadcast(boolean on) throws SocketException
+		{
+			setBooleanOption(StandardSocketOptions.SO_BROADCAST, on);
+		}
+		
+		public boolean getBroadcast() throws SocketException
+		{
+			return getBooleanOption(StandardSocketOptions.SO_BROADCAST);
+		}
+		
+		public void setTrafficClass(int tc) throws SocketException
+		{
+			if (tc < 0 || tc > 255)
+				throw new IllegalArgumentException("tc is not in range 0 -- 255");
+			
+			setIntOption(StandardSocketOptions.IP_TOS, tc);
+		}
+		
+		public int getTrafficClass() throws SocketException
+		{
+			return getIntOption(StandardSocketOptions.IP_TOS, 0);
+		}
+		
+		public void close()
+		{
+			try
+			{
+				EmuDatagramChannel.this.close();
+			}
+			catch (IOException e)
+			{
+				// can't happen - closing only wakes up the receivers
+			}
+		}
+		
+		public boolean isClosed()
+		{
+			return !isOpen();
+		}
+		
+		public DatagramChannel getChannel()
+		{
+			return EmuDatagramChannel.this;
+		}
+		
+		public DatagramSocket setOption(SocketOption name, Object value)
+			throws IOException
+		{
+			EmuDatagramChannel.this.setOption(name, value);
+			return this;
+		}
+		
+		public Object getOption(SocketOption name) throws IOException
+		{
+			return EmuDatagramChannel.this.getOption(name);
+		}
+		
+		public Set supportedOptions()
+		{
+			return EmuDatagramChannel.this.supportedOptions();
+		}
+		
+		public void joinGroup(SocketAddress group, NetworkInterface interf)
+			throws IOException
+		{
+			if (!(group instanceof InetSocketAddress))
+				throw new IllegalArgumentException("unsupported address type");
+			
+			join(((InetSocketAddress) group).getAddress(), interf);
+		}
+		
+		public void leaveGroup(SocketAddress group, NetworkInterface interf)
+			throws IOException
+		{
+			if (!(group instanceof InetSocketAddress))
+				throw new IllegalArgumentException("unsupported address type");
+			
+			EmuMembershipKey key = findKey(((InetSocketAddress) group).getAddress());
+			
+			if (key == null)
+				throw new SocketException("not a member of the group");
+			
+			key.drop();
+		}
+		
+		private void setIntOption(SocketOption name, int value)
+			throws SocketException
+		{
+			try
+			{
+				setOption(name, Integer.valueOf(value));
+			}
+			catch (IOException e)
+			{
+				throw toSocketException(e);
+			}
+		}
+		
+		// def if the option was never set
+		private int getIntOption(SocketOption name, int def)
+			throws SocketException
+		{
+			try
+			{
+				Object value = getOption(name);
+				return value == null ? def : ((Integer) value).intValue();
+			}
+			catch (IOException e)
+			{
+				throw toSocketException(e);
+			}
+		}
+		
+		private void setBooleanOption(SocketOption name, boolean value)
+			throws SocketException
+		{
+			try
+			{
+				setOption(name, Boolean.valueOf(value));
+			}
+			catch (IOException e)
+			{
+				throw toSocketException(e);
+			}
+		}
+		
+		private boolean getBooleanOption(SocketOption name)
+			throws SocketException
+		{
+			try
+			{
+				Object value = getOption(name);
+				return value != null && ((Boolean) value).booleanValue();
+			}
+			catch (IOException e)
+			{
+				throw toSocketException(e);
+			}
+		}
+		
+		private SocketException toSocketException(IOException e)
+		{
+			if (e instanceof SocketException)
+				return (SocketException) e;
+			
+			if (e instanceof ClosedChannelException)
+				return new SocketException("socket is closed");
+			
+			SocketException se = new SocketException(e.getMessage());
+			se.initCause(e);
+			return se;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package mobicomp.emu;
+
+/*
+ * EmuSelectionKey
+ *
+ * the registration of an EmuDatagramChannel with an EmuSelector
+ *
+ */
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+public class EmuSelectionKey extends AbstractSelectionKey
+{
+	private EmuDatagramChannel channel;
+	private EmuSelector selector;
+
+	// the operations the selector checks and the ones found ready by the
+	// last select (changed by the selector only)
+	private volatile int interestOps;
+	volatile int readyOps = 0;
+
+	EmuSelectionKey(EmuDatagramChannel channel, EmuSelector selector)
+	{
+		this.channel = channel;
+		this.selector = selector;
+	}
+
+	public SelectableChannel channel()
+	{
+		return channel;
+	}
+
+	EmuDatagramChannel getChannel()
+	{
+		return channel;
+	}
+
+	public Selector selector()
+	{
+		return selector;
+	}
+
+	public int interestOps()
+	{
+		if (!isValid())
+			throw new CancelledKeyException();
+
+		return interestOps;
+	}
+
+	// like interestOps(), but for the selector: another thread may cancel 
+	// the key any time, so the validity isn't checked
+	int getInterestOps()
+	{
+		return interestOps;
+	}
+
+	public SelectionKey interestOps(int ops)
+	{
+		if (!isValid())
+			throw new CancelledKeyException();
+
+		if ((ops & ~channel.validOps()) != 0)
+			throw new IllegalArgumentException("invalid operations " + ops);
+
+		interestOps = ops;
+		selector.interestChanged(this);
+
+		return this;
+	}
+
+	public int readyOps()
+	{
+		if (!isValid())
+			throw new CancelledKeyException();
+
+		return readyOps;
+	}
+}
@@ -0,0 +1,403 @@
+package mobicomp.emu;
+
+/*
+ * EmuSelector
+ *
+ * a java.nio.channels.Selector for EmuDatagramChannels. a channel is readable
+ * as soon as there's a packet in the queue of its socket, it's always
+ * writable (sending never blocks in the emulator).
+ *
+ * the selector doesn't poll its channels: a channel receiving a packet puts
+ * its keys into the set of possibly readable keys of their selectors (see
+ * keyReadable()). a select only checks those keys and the keys interested
+ * in writing, so one thread can serve thousands of channels which are idle
+ * most of the time.
+ *
+ * in virtual time, a thread waiting in select() is blocked for the clock,
+ * just like a thread waiting in receive()
+ *
+ */
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
+
+public class EmuSelector extends AbstractSelector
+{
+	// protects all sets below. lock order: socket -> selector lock -> clock
+	private Object lock = new Object();
+
+	// all registered keys and the keys selected by the last select
+	private Set keys = new HashSet();
+	private Set publicKeys = Collections.unmodifiableSet(keys);
+	private Set selectedKeys = new HashSet();
+
+	// the keys which may be readable (a packet arrived since they were found
+	// empty for the last time) and the keys interested in writing
+	private Set readable = new LinkedHashSet();
+	private Set writable = new HashSet();
+
+	// wakeup() was called
+	private boolean wakeupPending = false;
+
+	// the clock tokens of all threads waiting in select()
+	private Vector waiters = new Vector();
+
+	public EmuSelector(SelectorProvider provider)
+	{
+		super(provider);
+	}
+
+	/* *************************** from Selector **************************** */
+
+	public Set keys()
+	{
+		if (!isOpen())
+			throw new ClosedSelectorException();
+
+		return publicKeys;
+	}
+
+	public Set selectedKeys()
+	{
+		if (!isOpen())
+			throw new ClosedSelectorException();
+
+		return selectedKeys;
+	}
+
+	public int selectNow() throws IOException
+	{
+		return doSelect(-1);
+	}
+
+	public int select(long timeout) throws IOException
+	{
+		if (timeout < 0)
+			throw new IllegalArgumentException("negative timeout");
+
+		return doSelect(timeout);
+	}
+
+	public int select() throws IOException
+	{
+		return doSelect(0);
+	}
+
+	public Selector wakeup()
+	{
+		synchronized (lock)
+		{
+			wakeupPending = true;
+			wakeWaiters();
+		}
+
+		return this;
+	}
+
+	/* ************************ from AbstractSelector *********************** */
+
+	protected void implCloseSelector() throws IOException
+	{
+		wakeup();
+
+		Vector all;
+
+		synchronized (lock)
+		{
+			all = new Vector(keys);
+		}
+
+		// cancel all keys and deregister them from their channels
+		for (Iterator iter = all.iterator(); iter.hasNext(); )
+			((SelectionKey) iter.next()).cancel();
+
+		processCancelledKeys();
+	}
+
+	protected SelectionKey register(AbstractSelectableChannel ch, int ops,
+		Object att)
+	{
+		if (!(ch instanceof EmuDatagramChannel))
+			throw new IllegalSelectorException();
+
+		EmuDatagramChannel channel = (EmuDatagramChannel) ch;
+		EmuSelectionKey key = new EmuSelectionKey(channel, this);
+		key.attach(att);
+
+		synchronized (lock)
+		{
+			keys.add(key);
+		}
+
+		channel.addSelectionKey(key);
+
+		// sets the interest and checks for packets which are already there
+		key.interestOps(ops);
+
+		return key;
+	}
+
+	/* ****************** used by EmuDatagramChannel/Key ******************** */
+
+	// a packet arrived at the channel of key
+	void keyReadable(EmuSelectionKey key)
+	{
+		synchronized (lock)
+		{
+			if (readable.add(key))
+				wakeWaiters();
+		}
+	}
+
+	// the interest operations of key changed
+	void interestChanged(EmuSelectionKey key)
+	{
+		int ops = key.getInterestOps();
+
+		synchronized (lock)
+		{
+			if ((ops & SelectionKey.OP_WRITE) != 0)
+				writable.add(key);
+			else
+				writable.remove(key);
+
+			if ((ops & SelectionKey.OP_READ) != 0 && key.getChannel().isReadable())
+				readable.add(key);
+
+			wakeWaiters();
+		}
+	}
+
+	/* ****************************** internals ***************************** */
+
+	// the work of all select methods. timeout < 0: don't wait, 0: wait
+	// forever, > 0: wait at most timeout ms
+	private int doSelect(long timeout) throws IOException
+	{
+		if (!isOpen())
+			throw new ClosedSelectorException();
+
+		Clock clock = Emulator.getRef().getClock();
+		long deadline;
+
+		if (clock.isVirtual())
+			deadline = clock.millis() + timeout;
+		else
+			deadline = System.nanoTime() + timeout * 1000000L;
+
+		DeliveryScheduler.Task timer = null;
+		Clock.Waiter waiter = null;
+
+		// an interrupt wakes up the selector
+		begin();
+
+		try
+		{
+			while (true)
+			{
+				processCancelledKeys();
+
+				synchronized (lock)
+				{
+					int count = updateSelectedKeys();
+
+					if (count > 0 || timeout < 0 || wakeupPending ||
+						!isOpen() || Thread.currentThread().isInterrupted())
+					{
+						wakeupPending = false;
+						return count;
+					}
+
+					long nanos = 0;
+
+					if (timeout > 0)
+					{
+						if (clock.isVirtual())
+							nanos = (deadline - clock.millis()) * 1000000L;
+						else
+							nanos = deadline - System.nanoTime();
+
+						if (nanos <= 0)
+							return 0;
+					}
+
+					if (waiter == null)
+						waiter = new Clock.Waiter();
+
+					// in virtual time, only a timer of the scheduler can end
+					// the timeout
+					if (clock.isVirtual() && timeout > 0 && timer == null)
+					{
+						final Clock.Waiter timerWaiter = waiter;
+
+						timer = new DeliveryScheduler.Task()
+						{
+							public void run()
+							{
+								synchronized (lock)
+								{
+									Emulator.getRef().getClock().unblock(timerWaiter);
+									lock.notifyAll();
+								}
+							}
+						};
+
+						Emulator.getRef().getScheduler().schedule(
+							(int) Math.min(nanos / 1000000L, Integer.MAX_VALUE),
+							timer);
+					}
+
+					waiters.add(waiter);
+					clock.block(waiter);
+
+					try
+					{
+						if (timeout == 0 || clock.isVirtual())
+							lock.wait();
+						else
+							lock.wait(nanos / 1000000L, (int) (nanos % 1000000L));
+					}
+					catch (InterruptedException e)
+					{
+						// keep the interrupt status - select() just returns
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						waiters.remove(waiter);
+						clock.unblock(waiter);
+					}
+				}
+			}
+		}
+		finally
+		{
+			// a timer left in the scheduler would let the virtual time jump
+			// to a deadline nobody waits for
+			if (timer != null)
+				Emulator.getRef().getScheduler().cancel(timer);
+
+			end();
+		}
+	}
+
+	// wake up all threads waiting in select(). the caller holds the lock
+	private void wakeWaiters()
+	{
+		Clock clock = Emulator.getRef().getClock();
+
+		for (Iterator iter = waiters.iterator(); iter.hasNext(); )
+			clock.unblock((Clock.Waiter) iter.next());
+
+		lock.notifyAll();
+	}
+
+	// add all ready keys to the selected keys and return the number of keys
+	// whose ready operations were updated. the caller holds the lock
+	private int updateSelectedKeys()
+	{
+		int count = 0;
+
+		Set candidates = new LinkedHashSet(readable);
+		candidates.addAll(writable);
+
+		for (Iterator iter = candidates.iterator(); iter.hasNext(); )
+		{
+			EmuSelectionKey key = (EmuSelectionKey) iter.next();
+
+			if (!key.isValid())
+			{
+				readable.remove(key);
+				writable.remove(key);
+				continue;
+			}
+
+			int interest = key.getInterestOps();
+			int ready = 0;
+
+			if ((interest & SelectionKey.OP_READ) != 0 &&
+				key.getChannel().isReadable())
+			{
+				ready |= SelectionKey.OP_READ;
+			}
+			else
+			{
+				// checked again when the next packet arrives
+				readable.remove(key);
+			}
+
+			if ((interest & SelectionKey.OP_WRITE) != 0)
+				ready |= SelectionKey.OP_WRITE;
+
+			if (ready == 0)
+				continue;
+
+			if (selectedKeys.contains(key))
+			{
+				if ((key.readyOps | ready) != key.readyOps)
+				{
+					key.readyOps |= ready;
+					count++;
+				}
+			}
+			else
+			{
+				key.readyOps = ready;
+				selectedKeys.add(key);
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	// remove all cancelled keys. the channels are told without holding the
+	// lock (they lock themselves while registering, which locks us)
+	private void processCancelledKeys()
+	{
+		Set cancelled = cancelledKeys();
+		Vector removed = new Vector();
+
+		synchronized (cancelled)
+		{
+			if (cancelled.isEmpty())
+				return;
+
+			removed.addAll(cancelled);
+			cancelled.clear();
+		}
+
+		synchronized (lock)
+		{
+			for (Iterator iter = removed.iterator(); iter.hasNext(); )
+			{
+				Object key = iter.next();
+
+				keys.remove(key);
+				selectedKeys.remove(key);
+				readable.remove(key);
+				writable.remove(key);
+			}
+		}
+
+		for (Iterator iter = removed.iterator(); iter.hasNext(); )
+		{
+			EmuSelectionKey key = (EmuSelectionKey) iter.next();
+
+			key.getChannel().removeSelectionKey(key);
+			deregister(key);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package mobicomp.emu;
+
+/*
+ * EmuSelectorProvider
+ *
+ * the SelectorProvider installed by the emulator (system property
+ * java.nio.channels.spi.SelectorProvider) if Options.nioChannels is set. it
+ * makes DatagramChannel.open() and Selector.open() return emulated channels
+ * and selectors, so clients written with java.nio don't escape the emulator.
+ *
+ * the emulator only knows datagrams. since the provider replaces the one of
+ * the whole JVM, TCP channels and pipes are taken from the default provider
+ * of the platform. they work as usual, but can't be registered with an
+ * emulated selector. java 9 and later only let us reach the default provider
+ * if the JVM runs with --add-exports java.base/sun.nio.ch=ALL-UNNAMED,
+ * otherwise opening them fails with an IOException
+ *
+ */
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+public class EmuSelectorProvider extends SelectorProvider
+{
+	// the provider java would use without the emulator (null if it can't be
+	// reached)
+	private static SelectorProvider platform = null;
+	
+	// why the platform provider can't be reached
+	private static String platformError = null;
+	
+	private static boolean platformLoaded = false;
+	
+	public EmuSelectorProvider()
+	{
+		super();
+	}
+
+	public DatagramChannel openDatagramChannel() throws IOException
+	{
+		return new EmuDatagramChannel(this);
+	}
+
+	public DatagramChannel openDatagramChannel(ProtocolFamily family)
+		throws IOException
+	{
+		// the emulator doesn't care about the address family
+		return new EmuDatagramChannel(this);
+	}
+
+	public AbstractSelector openSelector() throws IOException
+	{
+		return new EmuSelector(this);
+	}
+
+	/* ************** not emulated - taken from the platform **************** */
+	
+	public Pipe openPipe() throws IOException
+	{
+		return getPlatform().openPipe();
+	}
+
+	public ServerSocketChannel openServerSocketChannel() throws IOException
+	{
+		return getPlatform().openServerSocketChannel();
+	}
+
+	public ServerSocketChannel openServerSocketChannel(ProtocolFamily family)
+		throws IOException
+	{
+		return getPlatform().openServerSocketChannel(family);
+	}
+
+	public SocketChannel openSocketChannel() throws IOException
+	{
+		return getPlatform().openSocketChannel();
+	}
+
+	public SocketChannel openSocketChannel(ProtocolFamily family)
+		throws IOException
+	{
+		return getPlatform().openSocketChannel(family);
+	}
+	
+	public Channel inheritedChannel() throws IOException
+	{
+		return getPlatform().inheritedChannel();
+	}
+	
+	// the default provider of the platform. it's created by
+	// sun.nio.ch.DefaultSelectorProvider, get() since java 11, create() before
+	private static synchronized SelectorProvider getPlatform() throws IOException
+	{
+		if (!platformLoaded)
+		{
+			platformLoaded = true;
+			
+			try
+			{
+				Class c = Class.forName("sun.nio.ch.DefaultSelectorProvider");
+				Method m;
+				
+				try
+				{
+					m = c.getMethod("get", new Class[0]);
+				}
+				catch (NoSuchMethodException e)
+				{
+					m = c.getMethod("create", new Class[0]);
+				}
+				
+				platform = (SelectorProvider) m.invoke(null, new Object[0]);
+			}
+			catch (Exception e)
+			{
+				// the package isn't exported to us
+				platformError = e.toString();
+			}
+		}
+		
+		if (platform == null)
+			throw new IOException("ERROR: only datagram channels are emulated, "
+				+ "other channels need the default provider of the platform. "
+				+ "run the JVM with --add-exports java.base/sun.nio.ch=ALL-UNNAMED "
+				+ "or set mobicomp.emu.nioChannels=false (" + platformError + ")");
+		
+		return platform;
+	}
+}
@@ -6,13 +6,19 @@ package mobicomp.emu;
  * this class extends the abstract class DatagramSocketImpl which is required to
  * replace the default java.net.MulticastSocket
  *
- * setOption() and getOption() calls are ignored since they have to do with
- * lower levels which are not implemented by the emulator
+ * most setOption() and getOption() calls are ignored since they have to do 
+ * with lower levels which are not implemented by the emulator
  *
  */
 
 import java.net.*;
 import java.util.Vector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.IOException;
 import java.io.FileDescriptor;
 
@@ -26,61 +32,494 @@ public class EmuSocket extends DatagramSocketImpl
 	// value of SO_TIMEOUT (0 for infinity)
 	private int so_timeout = 0;
 	
+	// the address given to bind() (usually the wildcard address)
+	private InetAddress boundAddress = null;
+	
+	// value of SO_RCVBUF: the bytes the queue may hold (0 for no limit)
+	private int so_rcvbuf = Options.receiveBufferSize;
+	
+	// IP_MULTICAST_LOOP: multicast packets sent by this socket are delivered
+	// to the sockets of its own node, too
+	private volatile boolean multicastLoop = true;
+	
+	// the bytes of all packets in the queue and in flight. can be read 
+	// without the lock (used to find the biggest queue)
+	private volatile int queuedBytes = 0;
+	
+	// position in the QueueHeap of the emulator (-1 if not in it) and the
+	// bytes the heap knows of. guarded by the heap
+	int heapIndex = -1;
+	int heapBytes = 0;
+	
 	private static Emulator emu = Emulator.getRef();
 	
 	// name of the owner of the socket
 	private String ownername;
 	
 	// all packets ready to be received (priority queue according to the arrival 
-	// time of a packet)
-	private Vector waitingPackets = new Vector();
+	// time of a packet). packets on a link with a delay are kept by the 
+	// DeliveryScheduler and only show up here when they are due
+	private PacketQueue waitingPackets = new PacketQueue();
+	
+	// number of packets for this socket which are still in flight
+	private int packetsInFlight = 0;
+	
+	// the deliveries of these packets in the order they were sent (so the 
+	// oldest one can be cancelled, see evictOldest()). a Delivery unlinks 
+	// itself when it's due
+	private Delivery firstDelivery = null;
+	private Delivery lastDelivery = null;
 	
 	// all groups this socket is currently bound to
 	private Vector groups = new Vector();
 	
-	// the thread currently waiting for a packet
-	private Thread sleepThread;
+	// protects the queue. the lock is fair, so a woken receiver gets the
+	// packet before a thread calling receive() later
+	private ReentrantLock lock = new ReentrantLock(true);
+	
+	// all threads waiting for a packet (first come, first served). any number
+	// of threads may receive from the same socket - every packet wakes up 
+	// exactly one of them
+	private LinkedList receivers = new LinkedList();
+	
+	// true after close(). packets still in flight are thrown away
+	private boolean closed = false;
+	
+	// number of packets in the queue. can be read without the lock (used by
+	// selectors to find the readable channels)
+	private volatile int available = 0;
+	
+	// notified about every packet put into the queue (null if nobody is 
+	// interested)
+	private PacketListener packetListener = null;
+	
+	// the handler getting every packet of the socket (null if there is none)
+	// and the futures waiting for the next packet (see receiveAsync())
+	private PacketHandler packetHandler = null;
+	private LinkedList pendingFutures = new LinkedList();
+	
+	// true while a Dispatch of packets to the handler or the futures is 
+	// scheduled or running. there's never more than one, so the handler of 
+	// a socket is called by one thread at a time
+	private boolean dispatching = false;
+	
+	// all threads waiting for room in the queue (Options.OVERFLOW_BLOCK)
+	private LinkedList senders = new LinkedList();
+	
+	// number of packets thrown away and of sends that had to wait because 
+	// the buffer was full
+	private int droppedPackets = 0;
+	private int blockedSends = 0;
+	
+	// decides which packets are dropped early (Options.OVERFLOW_DROP_RANDOM)
+	private Random random = new Random();
 	
-	// receive a packet by adding it to the waitingPackets vector. the next time
-	// receive() is called, this packet will be returned
-	public synchronized void receivePacket(DatagramPacket packet, int delay)
+	// receive a packet. if the link has no delay, it is added to the 
+	// waitingPackets queue immediately, otherwise the DeliveryScheduler adds 
+	// it as soon as it is due. the next time receive() is called, this packet 
+	// will be returned. the socket holds a reference to the payload until the
+	// packet is received
+	public void receivePacket(Payload packet, int delay)
 	{
-		// don't accept packages, if there are to many waiting. this can happen
-		// if one of the clients opened a socket and never (or rarely) checks
-		// for incoming packets. this would result in a 
-		// java.lang.OutOfMemoryException (and this happens fast! *argh*)
-		if (waitingPackets.size() > Options.packetBufferSize)
+		receivePacket(packet, delay, true);
+	}
+	
+	// receive a packet. mayBlock is false if the sending thread must not wait
+	// for room in the buffer (Options.OVERFLOW_BLOCK)
+	void receivePacket(Payload packet, int delay, boolean mayBlock)
+	{
+		// the global byte budget comes first - making room there may need
+		// the lock of another socket
+		if (!emu.reserveBytes(this, packet.getLength()))
 		{
-			if (Options.outputPacketOverflow)
-				emu.sendEmulatorMessage("Packet thrown away due to buffer overflow\n", false);
-				
+			lock.lock();
+			
+			try
+			{
+				droppedPackets++;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			
+			emu.countOverflow();
 			return;
 		}
+		
+		lock.lock();
+		
+		try
+		{
+			// don't accept packages, if there are to many waiting. this can 
+			// happen if one of the clients opened a socket and never (or 
+			// rarely) checks for incoming packets. this would result in a 
+			// java.lang.OutOfMemoryException (and this happens fast! *argh*)
+			if (!makeRoom(mayBlock))
+			{
+				emu.releaseBytes(packet.getLength());
+				droppedPackets++;
+				emu.countOverflow();
+				return;
+			}
+			
+			packet.retain();
+			queuedBytes += packet.getLength();
+			emu.queueChanged(this);
+			
+			DeliveryScheduler scheduler = emu.getScheduler();
 			
-		// insert the packet in a sorted manner
-		long arrivalTime = System.currentTimeMillis() + delay;
-		sortedInsert(new pqElem(packet, arrivalTime));
+			if (delay == 0)
+			{
+				deliver(packet, scheduler.now());
+			}
+			else
+			{
+				Delivery delivery = new Delivery(packet);
+				
+				packetsInFlight++;
+				delivery.link();
+				scheduler.schedule(delay, delivery);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	// true if the buffer is full. like in a real network stack, the byte 
+	// limit (SO_RCVBUF) may be exceeded by the last packet accepted
+	private boolean isFull()
+	{
+		if (so_rcvbuf > 0 && queuedBytes >= so_rcvbuf)
+			return true;
+		
+		return waitingPackets.size() + packetsInFlight > Options.packetBufferSize;
+	}
+	
+	// a packet left the queue (or never made it there): give back its bytes.
+	// the caller holds the lock
+	private void forget(Payload packet)
+	{
+		queuedBytes -= packet.getLength();
+		emu.queueChanged(this);
+		emu.releaseBytes(packet.getLength());
+	}
+	
+	// throw the oldest packet away to make room in the global byte budget
+	// (see Emulator.reserveBytes()): the first due packet or, if there is 
+	// none, the packet in flight sent first. returns false if there is no 
+	// packet to throw away
+	boolean evictOldest()
+	{
+		lock.lock();
 		
-		if (sleepThread != null)
-			sleepThread.interrupt();
+		try
+		{
+			if (!waitingPackets.isEmpty())
+			{
+				Payload oldest = waitingPackets.poll();
+				forget(oldest);
+				oldest.release();
+				
+				available = waitingPackets.size();
+			}
+			else if (firstDelivery != null)
+			{
+				// the scheduler still runs the task, but it won't deliver
+				Delivery oldest = firstDelivery;
+				oldest.unlink();
+				oldest.cancelled = true;
+				packetsInFlight--;
+				
+				forget(oldest.packet);
+				oldest.packet.release();
+			}
+			else
+			{
+				return false;
+			}
+			
+			wakeSender();
+			droppedPackets++;
+			emu.countOverflow();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	// the bytes of all packets in the queue and in flight
+	int getQueuedBytes()
+	{
+		return queuedBytes;
 	}
 	
-	// insert a packet in the waitingPackets priority queue
-	private synchronized void sortedInsert(pqElem elem)
+	// apply the overflow policy before a new packet is accepted. returns 
+	// false if the new packet must be thrown away. the caller holds the lock
+	private boolean makeRoom(boolean mayBlock)
 	{
-		for(int i=0; i<waitingPackets.size(); i++)
+		switch (Options.overflowPolicy)
 		{
-			pqElem curElem = (pqElem) waitingPackets.get(i);
+			case Options.OVERFLOW_DROP_OLDEST:
+			{
+				// packets in flight can't be taken back - if all of them are, 
+				// the new packet goes
+				if (isFull() && !waitingPackets.isEmpty())
+				{
+					Payload oldest = waitingPackets.poll();
+					forget(oldest);
+					oldest.release();
+					
+					available = waitingPackets.size();
+					droppedPackets++;
+					emu.countOverflow();
+				}
+				
+				return !isFull();
+			}
 			
-			if (curElem.arrivalTime > elem.arrivalTime)
+			case Options.OVERFLOW_DROP_RANDOM:
 			{
-				waitingPackets.insertElementAt(elem, i);
-				return;
+				// the probability of a drop grows linearly from 0 when the 
+				// buffer is half full to 1 when it's full. the buffer is as
+				// full as the fuller one of its limits: the packets (full 
+				// with more than packetBufferSize) and the bytes (SO_RCVBUF)
+				if (isFull())
+					return false;
+				
+				int used = waitingPackets.size() + packetsInFlight;
+				double fill = (double) used / (Options.packetBufferSize + 1);
+				
+				if (so_rcvbuf > 0)
+					fill = Math.max(fill, (double) queuedBytes / so_rcvbuf);
+				
+				if (fill < 0.5)
+					return true;
+				
+				return random.nextDouble() >= (fill - 0.5) * 2;
 			}
+			
+			case Options.OVERFLOW_BLOCK:
+			{
+				if (mayBlock && isFull())
+					awaitRoom();
+				
+				return !isFull() && !closed;
+			}
+			
+			default:
+				return !isFull();
+		}
+	}
+	
+	// wait until a receiver takes a packet out of the full buffer (or the 
+	// socket is closed). the caller holds the lock. in virtual time, the
+	// waiting sender is blocked for the clock like a receiver
+	private void awaitRoom()
+	{
+		Clock clock = emu.getClock();
+		Receiver me = new Receiver(lock.newCondition());
+		
+		blockedSends++;
+		
+		try
+		{
+			while (isFull() && !closed)
+			{
+				if (!me.queued)
+				{
+					// first time or woken up, but someone else took the room
+					senders.addLast(me);
+					me.queued = true;
+				}
+				
+				clock.block(me);
+				
+				try
+				{
+					me.wakeUp.awaitUninterruptibly();
+				}
+				finally
+				{
+					clock.unblock(me);
+				}
+			}
+		}
+		finally
+		{
+			if (me.queued)
+				senders.remove(me);
+		}
+	}
+	
+	// a packet left the buffer - let the sender waiting longest go on. the
+	// caller holds the lock
+	private void wakeSender()
+	{
+		Receiver sender = (Receiver) senders.poll();
+		
+		if (sender != null)
+		{
+			sender.queued = false;
+			emu.getClock().unblock(sender);
+			sender.wakeUp.signal();
+		}
+	}
+	
+	// a packet is due: put it into the queue and wake up the receiver. the
+	// caller holds the lock
+	private void deliver(Payload packet, long arrivalTime)
+	{
+		if (closed)
+		{
+			forget(packet);
+			packet.release();
+			return;
+		}
+		
+		waitingPackets.add(packet, arrivalTime);
+		available = waitingPackets.size();
+		wakeReceiver();
+		scheduleDispatch();
+		
+		if (packetListener != null)
+			packetListener.packetArrived(this);
+	}
+	
+	// let the callback executor hand the waiting packets over to the packet
+	// handler or the futures, if there are any. the caller holds the lock
+	private void scheduleDispatch()
+	{
+		if (dispatching || closed || waitingPackets.isEmpty())
+			return;
+		
+		if (packetHandler == null && pendingFutures.isEmpty())
+			return;
+		
+		dispatching = true;
+		
+		// the time must not move on while the callback runs
+		emu.getClock().hold();
+		emu.getCallbackExecutor().execute(new Dispatch());
+	}
+	
+	// hand the first packet in the queue over to the receiver waiting longest.
+	// the caller holds the lock
+	private void wakeReceiver()
+	{
+		Receiver receiver = (Receiver) receivers.poll();
+		
+		if (receiver != null)
+		{
+			receiver.queued = false;
+			emu.getClock().unblock(receiver);
+			receiver.wakeUp.signal();
 		}
+	}
+	
+	// the deadline of a timeout of timeout ms starting now. in real time, 
+	// the deadline is taken from System.nanoTime(), so the timeout doesn't 
+	// depend on the granularity of the system clock. in virtual time, it's
+	// the time of the clock in ms
+	private long deadline(int timeout)
+	{
+		if (emu.getClock().isVirtual())
+			return emu.getClock().millis() + timeout;
+		else
+			return System.nanoTime() + timeout * 1000000L;
+	}
+	
+	// wait until there is a packet in the queue. the caller holds the lock.
+	// timeout is in ms (0 for infinity), the deadline is the result of 
+	// deadline(timeout). in virtual time, a timer of the scheduler wakes us 
+	// up when the timeout is over
+	private void awaitPacket(int timeout, long deadline) throws IOException
+	{
+		Clock clock = emu.getClock();
+		Receiver me = null;
+		Timeout timer = null;
+		boolean interrupted = false;
 		
-		// insert packet at the end
-		waitingPackets.insertElementAt(elem, waitingPackets.size());
+		try
+		{
+			while (waitingPackets.isEmpty())
+			{
+				if (closed)
+					throw new SocketException("Socket is closed");
+				
+				long nanos = 0;
+				
+				if (timeout != 0)
+				{
+					if (clock.isVirtual())
+						nanos = (deadline - clock.millis()) * 1000000L;
+					else
+						nanos = deadline - System.nanoTime();
+					
+					if (nanos <= 0)
+						throw new SocketTimeoutException();
+				}
+				
+				if (me == null)
+				{
+					me = new Receiver(lock.newCondition());
+					receivers.addLast(me);
+					me.queued = true;
+				}
+				else if (!me.queued)
+				{
+					// we were woken up, but another thread took the packet.
+					// we are still first in line
+					receivers.addFirst(me);
+					me.queued = true;
+				}
+				
+				// in virtual time, only a timer of the scheduler can end the
+				// timeout
+				if (clock.isVirtual() && timeout != 0 && timer == null)
+				{
+					timer = new Timeout(me);
+					emu.getScheduler().schedule((int) (nanos / 1000000L), timer);
+				}
+				
+				clock.block(me);
+				
+				try
+				{
+					if (timeout == 0 || clock.isVirtual())
+						me.wakeUp.awaitUninterruptibly();
+					else
+						me.wakeUp.awaitNanos(nanos);
+				}
+				catch (InterruptedException e)
+				{
+					// a socket doesn't react on interrupts - but the client
+					// should still see it
+					interrupted = true;
+				}
+				finally
+				{
+					clock.unblock(me);
+				}
+			}
+		}
+		finally
+		{
+			if (me != null && me.queued)
+				receivers.remove(me);
+			
+			// a timer left in the scheduler would let the virtual time jump
+			// to a deadline nobody waits for
+			if (timer != null)
+				emu.getScheduler().cancel(timer);
+			
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
 	}
 	
 	// finalizer
@@ -109,14 +548,57 @@ public class EmuSocket extends DatagramSocketImpl
 		if (lport < 0 || laddr == null)
 			throw new NullPointerException();
 		
-		// register the socket with its port and address at the controller
-		emu.register(this, lport, laddr);
+		boundAddress = laddr;
+		
+		// register the socket with its port and address at the controller.
+		// port 0 gets an ephemeral port
+		localPort = emu.register(this, lport, laddr);
 	}
 
 	// Closes this datagram socket. 
 	public void close()
 	{
 		emu.unregister(this);
+		
+		Vector futures;
+		
+		// give back all packets nobody is going to receive
+		lock.lock();
+		
+		try
+		{
+			closed = true;
+			
+			while (!waitingPackets.isEmpty())
+			{
+				Payload packet = waitingPackets.poll();
+				forget(packet);
+				packet.release();
+			}
+			
+			available = 0;
+			
+			// all threads still waiting for a packet get an exception
+			while (!receivers.isEmpty())
+				wakeReceiver();
+			
+			// and all senders waiting for room give up
+			while (!senders.isEmpty())
+				wakeSender();
+			
+			futures = new Vector(pendingFutures);
+			pendingFutures.clear();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		// so do the futures (completed without the lock - they may run 
+		// actions of the client)
+		for (Iterator iter = futures.iterator(); iter.hasNext(); )
+			((CompletableFuture) iter.next()).completeExceptionally(
+				new SocketException("Socket is closed"));
 	}
 	
 	// Connects the socket to a remote address for this socket. 
@@ -152,7 +634,13 @@ public class EmuSocket extends DatagramSocketImpl
 	// Returns the port number on the local host to which this socket is bound. 
 	public int getLocalPort()
 	{
-		return 0;
+		return localPort;
+	}
+	
+	// set by the emulator when the socket is registered
+	void setLocalPort(int port)
+	{
+		localPort = port;
 	}
 	
 	public int getTimeToLive()
@@ -167,11 +655,11 @@ public class EmuSocket extends DatagramSocketImpl
 	
 	public void join(InetAddress inetaddr)
 	{
-		emu.join(this, inetaddr);
-		
 		if (!groups.contains(inetaddr))
 			groups.add(inetaddr);
-
+		
+		// after changing groups - the emulator updates its routes
+		emu.join(this, inetaddr);
 	}
 	
 	public void joinGroup(SocketAddress mcastaddr, NetworkInterface netIf)
@@ -181,9 +669,9 @@ public class EmuSocket extends DatagramSocketImpl
 
 	public void leave(InetAddress inetaddr)
 	{
-		emu.leave(this, inetaddr);
-		
 		groups.remove(inetaddr);
+		
+		emu.leave(this, inetaddr);
 	}
 
 	public void leaveGroup(SocketAddress mcastaddr, NetworkInterface netIf)
@@ -191,168 +679,62 @@ public class EmuSocket extends DatagramSocketImpl
 		return;
 	}
 
-	public int peek(InetAddress i)
+	// returns the port of the next packet without removing it. waits for a
+	// packet like receive() does (including SO_TIMEOUT)
+	public int peek(InetAddress i) throws IOException
 	{
-		// wait until there's a packet waiting and then retun its address & port
-		while (waitingPackets.isEmpty())
-		{
-			// sleep some time
-			try
-			{
-				Thread.sleep(100);
-			}
-			catch (InterruptedException e)
-			{
-				// just ignore it
-			}
-		}
+		Payload nextPacket = peekPacket();
 		
-		DatagramPacket nextPacket = 
-			(DatagramPacket) waitingPackets.firstElement();
-			
-		i = nextPacket.getAddress();
-		return nextPacket.getPort();
+		nextPacket.release();
+		return nextPacket.getSourcePort();
 	}
 
-	public int peekData(DatagramPacket p)
+	// copies the next packet into p without removing it from the queue
+	public int peekData(DatagramPacket p) throws IOException
 	{
-		// wait until there's a packet waiting and then retun its address & port
-		while (waitingPackets.isEmpty())
-		{
-			// sleep some time
-			try
-			{
-				Thread.sleep(100);
-			}
-			catch (InterruptedException e)
-			{
-				// just ignore it
-			}
-		}
+		Payload nextPacket = peekPacket();
 		
-		DatagramPacket nextPacket = 
-			(DatagramPacket) waitingPackets.firstElement();
-			
-		p.setAddress(nextPacket.getAddress());
-		p.setData(nextPacket.getData());
-		p.setPort(nextPacket.getPort());
-		return nextPacket.getPort();
+		nextPacket.copyTo(p);
+		nextPacket.release();
+		return nextPacket.getSourcePort();
 	}
-
-	// Receives a datagram packet from this socket
-	public void receive(DatagramPacket p) throws IOException
+	
+	// wait for the next packet and return it without removing it from the
+	// queue. the caller must release() it
+	private Payload peekPacket() throws IOException
 	{
-	    
-	    
-		if (sleepThread != null)
-		{
-			throw new RuntimeException("ERROR: only one thread is allowed to call receive() on a socket");
-		}
-		
-		boolean packetReady = false;
-		DatagramPacket newPacket = null;
-		long startedReceivingAt = System.currentTimeMillis();
-		
-		sleepThread = Thread.currentThread();
-		int sleeptime = 0;
+		lock.lock();
 		
-		while (!packetReady)
+		try
 		{
-			while (waitingPackets.isEmpty())
-			{
-				// sleep a loooong time
-				try
-				{
-					if (so_timeout == 0)
-						Thread.sleep(Long.MAX_VALUE);
-					else
-					    try{
-					        Thread.sleep((startedReceivingAt + so_timeout) - System.currentTimeMillis());
-					    } catch (IllegalArgumentException iae){
-					        // the timeout has become negative
-					    }
-					sleepThread = null;
-					throw new SocketTimeoutException();
-				}
-				catch (InterruptedException e)
-				{
-					// a new packet arrived!
-				}
-			}
-			
-			// check if we already are allowed to deliver the packet
-			long arrivalTime = ((pqElem) waitingPackets.firstElement()).arrivalTime;
-			
+			// only due packets are in the queue - the head is the packet 
+			// receive() would return next
+			awaitPacket(so_timeout, deadline(so_timeout));
 			
-			if (arrivalTime > System.currentTimeMillis())
-			{
-				// sleep until the packet can be delivered
-				try
-				{
-					if (so_timeout == 0)
-						Thread.sleep(arrivalTime - System.currentTimeMillis());
-					else
-					{
-						try {
-                            if (arrivalTime > startedReceivingAt + so_timeout){
-                          // Do while: If the operating system has a time granularity which is less than so_timeout ms the sleep command 
-                          // is NOT called at all. This leads to problems if the link has a delay >0 since the currentTimeMillis() 
-                          // is less than startedReceivingAt + so_timeout
-                                do{
-                                    Thread.sleep((startedReceivingAt + so_timeout) - System.currentTimeMillis());
-                                }while(System.currentTimeMillis() == startedReceivingAt);
-                            }
-                            else{
-                                Thread.sleep(arrivalTime - System.currentTimeMillis());
-                            }
-                        } catch (IllegalArgumentException e1) {
-                           // the timeout has become negative
-                        }
-					}
-					
-					// check for timeout
-					if ((so_timeout != 0) && (System.currentTimeMillis() >= (startedReceivingAt + so_timeout))){
-					    sleepThread = null;
-					    throw new SocketTimeoutException();
-					}
-				}
-				catch (InterruptedException e)
-				{
-					if (System.currentTimeMillis() < arrivalTime){
-					    continue;
-					}
-				}
-			}
+			Payload nextPacket = waitingPackets.peek();
+			nextPacket.retain();
 			
-			newPacket = ((pqElem) waitingPackets.remove(0)).packet;
+			// we didn't take the packet we were woken up for - pass it on to 
+			// the next receiver
+			wakeReceiver();
 			
-			// a packet is ready. but if we are connected, we cannot 
-			// accept packets from every source!
-			if (connected &&
-			   ((newPacket.getAddress() != connectedAddress) ||
-				(newPacket.getPort() != connectedPort)))
-			{
-				// ignore the packet
-			}
-			else
-			{
-				// after tons of checks, we are allowed to deliver the packet...
-				packetReady = true;
-			}
+			return nextPacket;
 		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	// Receives a datagram packet from this socket
+	public void receive(DatagramPacket p) throws IOException
+	{
+		Payload newPacket = receivePayload();
 		
-		sleepThread = null;
-		
-		// deliver the packet
-		p.setAddress(newPacket.getAddress());
-		
-		if (newPacket.getData().length < p.getData().length)
-			System.arraycopy(newPacket.getData(), 0, p.getData(), 0, newPacket.getData().length);
-		else
-			System.arraycopy(newPacket.getData(), 0, p.getData(), 0, p.getData().length);
-		
-		p.setLength(newPacket.getLength());
-		p.setPort(newPacket.getPort());
+		// deliver the packet - straight from the shared payload into the 
+		// buffer of the caller
+		newPacket.copyTo(p);
+		newPacket.release();
 		
 		
 		
@@ -414,6 +796,234 @@ public class EmuSocket extends DatagramSocketImpl
 //		p.setPort(newPacket.getPort());
 	}
 	
+	// wait for the next packet (honors SO_TIMEOUT and the connected address)
+	// and remove it from the queue. the caller must release() it
+	Payload receivePayload() throws IOException
+	{
+		return receivePayload(so_timeout);
+	}
+	
+	// like receivePayload(), but waits at most timeout ms (0 for infinity)
+	// instead of SO_TIMEOUT
+	Payload receivePayload(int timeout) throws IOException
+	{
+		Payload newPacket = null;
+		
+		lock.lock();
+		
+		try
+		{
+			long deadline = deadline(timeout);
+			
+			while (newPacket == null)
+			{
+				// all packets in the queue are due - we only need to wait
+				// until there is one
+				awaitPacket(timeout, deadline);
+				
+				newPacket = nextAccepted();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		return newPacket;
+	}
+	
+	// wait for the first packet like receivePayload() (timeout in ms, 0 for
+	// infinity), then take all packets that are due as well - at most 
+	// packets.length. the data is copied into the packets. returns the number
+	// of packets received
+	int receiveMany(DatagramPacket[] packets, int timeout) throws IOException
+	{
+		if (packets.length == 0)
+			return 0;
+		
+		Payload[] batch = new Payload[packets.length];
+		int count = 0;
+		
+		lock.lock();
+		
+		try
+		{
+			long deadline = deadline(timeout);
+			
+			while (count == 0)
+			{
+				awaitPacket(timeout, deadline);
+				
+				// one pass over the queue for the whole batch
+				while (count < batch.length && !waitingPackets.isEmpty())
+				{
+					Payload next = nextAccepted();
+					
+					if (next != null)
+						batch[count++] = next;
+				}
+			}
+			
+			// we may have been woken up for a packet that's still there
+			if (!waitingPackets.isEmpty())
+				wakeReceiver();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		// copy without holding the lock, just like receive()
+		for (int i = 0; i < count; i++)
+		{
+			batch[i].copyTo(packets[i]);
+			batch[i].release();
+		}
+		
+		return count;
+	}
+	
+	// the next packet in the queue or null if there is none. doesn't wait.
+	// the caller must release() the packet
+	Payload poll()
+	{
+		lock.lock();
+		
+		try
+		{
+			Payload newPacket = null;
+			
+			while (newPacket == null && !waitingPackets.isEmpty())
+				newPacket = nextAccepted();
+			
+			return newPacket;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	// remove the first packet from the queue. returns null if the packet is
+	// thrown away (the socket is connected to another address). the caller
+	// holds the lock
+	private Payload nextAccepted()
+	{
+		Payload newPacket = waitingPackets.poll();
+		available = waitingPackets.size();
+		forget(newPacket);
+		wakeSender();
+		
+		// a packet is ready. but if we are connected, we cannot accept packets
+		// from every source!
+		if (connected &&
+		   (!connectedAddress.equals(newPacket.getSourceAddress()) ||
+			(newPacket.getSourcePort() != connectedPort)))
+		{
+			// ignore the packet
+			newPacket.release();
+			return null;
+		}
+		
+		return newPacket;
+	}
+	
+	// let handler receive all packets of the socket (null: stop it). the 
+	// handler runs on the callback executor of the emulator
+	void setPacketHandler(PacketHandler handler)
+	{
+		lock.lock();
+		
+		try
+		{
+			packetHandler = handler;
+			scheduleDispatch();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	// a future completed with the next packet (SO_TIMEOUT doesn't apply). 
+	// packets go to the futures first and to the packet handler only if no
+	// future is waiting
+	CompletableFuture receiveAsync()
+	{
+		CompletableFuture future = new CompletableFuture();
+		
+		lock.lock();
+		
+		try
+		{
+			if (!closed)
+			{
+				pendingFutures.addLast(future);
+				scheduleDispatch();
+				return future;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		future.completeExceptionally(new SocketException("Socket is closed"));
+		return future;
+	}
+	
+	// number of packets thrown away because the buffer was full
+	public int getDroppedPackets()
+	{
+		lock.lock();
+		
+		try
+		{
+			return droppedPackets;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	// number of sends that waited for room in the buffer 
+	// (Options.OVERFLOW_BLOCK)
+	public int getBlockedSends()
+	{
+		lock.lock();
+		
+		try
+		{
+			return blockedSends;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	// number of packets ready to be received (without locking the socket)
+	int available()
+	{
+		return available;
+	}
+	
+	// set the listener notified about new packets
+	void setPacketListener(PacketListener listener)
+	{
+		lock.lock();
+		
+		try
+		{
+			packetListener = listener;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
 	// Sends a datagram packet from this socket.
 	public void send(DatagramPacket p) throws IOException
 	{
@@ -429,7 +1039,7 @@ public class EmuSocket extends DatagramSocketImpl
 			}
 			else
 			{
-				if ((p.getAddress() != connectedAddress) ||
+				if (!p.getAddress().equals(connectedAddress) ||
 					(p.getPort() != connectedPort))
 				{
 					// not allowed to send to another address or port than the 
@@ -464,13 +1074,32 @@ public class EmuSocket extends DatagramSocketImpl
 		if (optID == SocketOptions.SO_TIMEOUT)
 			return new Integer(so_timeout);
 		
+		// every node has exactly one address. a socket bound to the wildcard
+		// address tells it (that's how a client learns its address)
+		if (optID == SocketOptions.SO_BINDADDR)
+		{
+			if (boundAddress == null || boundAddress.isAnyLocalAddress())
+				return emu.getNodeAddress(this);
+			
+			return boundAddress;
+		}
+		
+		// 0 means there's no byte limit
+		if (optID == SocketOptions.SO_RCVBUF)
+			return Integer.valueOf(so_rcvbuf);
+		
+		// like MulticastSocket.getLoopbackMode(): true if loopback is disabled
+		if (optID == SocketOptions.IP_MULTICAST_LOOP)
+			return Boolean.valueOf(!multicastLoop);
+		
 		return null;
 	}
 	
 	// Enable/disable the option specified by optID. 
 	public void setOption(int optID, Object value)
 	{
-		// we only handle SO_TIMEOUT - the rest is mostly about low level stuff
+		// we only handle SO_TIMEOUT, SO_RCVBUF and IP_MULTICAST_LOOP - the 
+		// rest is mostly about low level stuff
 		if (optID == SocketOptions.SO_TIMEOUT)
 		{
 			int val = ((Integer) value).intValue();
@@ -478,20 +1107,247 @@ public class EmuSocket extends DatagramSocketImpl
 			if (val > 0)
 				this.so_timeout = val;
 		}
+		else if (optID == SocketOptions.SO_RCVBUF)
+		{
+			lock.lock();
+			
+			try
+			{
+				so_rcvbuf = Math.max(0, ((Integer) value).intValue());
+				
+				// a bigger buffer may let waiting senders go on
+				while (!senders.isEmpty() && !isFull())
+					wakeSender();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		else if (optID == SocketOptions.IP_MULTICAST_LOOP)
+		{
+			// like MulticastSocket.setLoopbackMode(): true disables loopback
+			multicastLoop = !((Boolean) value).booleanValue();
+		}
+	}
+	
+	// DatagramSocket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, ...)
+	// ends up here. true enables loopback, the opposite of setOption() above
+	protected void setOption(SocketOption name, Object value) throws IOException
+	{
+		if (name == StandardSocketOptions.IP_MULTICAST_LOOP)
+			multicastLoop = ((Boolean) value).booleanValue();
+		else
+			super.setOption(name, value);
+	}
+	
+	protected Object getOption(SocketOption name) throws IOException
+	{
+		if (name == StandardSocketOptions.IP_MULTICAST_LOOP)
+			return Boolean.valueOf(multicastLoop);
+		
+		return super.getOption(name);
+	}
+	
+	// false if IP_MULTICAST_LOOP was turned off
+	boolean isMulticastLoop()
+	{
+		return multicastLoop;
 	}
 	
 	/* *********************** private classes ****************************** */
-	// small datatype for the priority queue
-	private class pqElem
+	// wakes up the receiver when SO_TIMEOUT is over (only used in virtual time)
+	private class Timeout extends DeliveryScheduler.Task
 	{
-		public DatagramPacket packet;
-		public long arrivalTime;
+		private Receiver receiver;
 		
-		public pqElem(DatagramPacket packet, long arrTime)
+		public Timeout(Receiver receiver)
 		{
-			this.packet = packet;
-			this.arrivalTime = arrTime;
+			this.receiver = receiver;
+		}
+		
+		public void run()
+		{
+			lock.lock();
+			
+			try
+			{
+				emu.getClock().unblock(receiver);
+				receiver.wakeUp.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+	
+	// a thread waiting for a packet (or for room in the buffer). the token 
+	// tells the clock whether the thread is blocked (virtual time)
+	private static class Receiver extends Clock.Waiter
+	{
+		Condition wakeUp;
+		
+		// true while the receiver is in the list of waiting receivers
+		boolean queued = false;
+		
+		Receiver(Condition wakeUp)
+		{
+			this.wakeUp = wakeUp;
+		}
+	}
+	
+	// hands the waiting packets over to the futures and the packet handler,
+	// one by one and without holding the lock while calling them
+	private class Dispatch implements Runnable
+	{
+		public void run()
+		{
+			emu.setCallbackOwner(ownername);
+			
+			try
+			{
+				while (dispatchNext())
+					;
+			}
+			finally
+			{
+				emu.setCallbackOwner(null);
+				emu.getClock().release();
+			}
+		}
+		
+		// pass on the next packet. returns false when there's nothing left
+		// to do
+		private boolean dispatchNext()
+		{
+			Payload packet = null;
+			CompletableFuture future = null;
+			PacketHandler handler;
+			
+			lock.lock();
+			
+			try
+			{
+				// forget futures the client cancelled
+				while (!pendingFutures.isEmpty() && 
+					((CompletableFuture) pendingFutures.getFirst()).isDone())
+				{
+					pendingFutures.removeFirst();
+				}
+				
+				handler = packetHandler;
+				
+				if (!closed && (handler != null || !pendingFutures.isEmpty()))
+				{
+					while (packet == null && !waitingPackets.isEmpty())
+						packet = nextAccepted();
+				}
+				
+				if (packet == null)
+				{
+					dispatching = false;
+					return false;
+				}
+				
+				future = (CompletableFuture) pendingFutures.poll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			
+			DatagramPacket p = new DatagramPacket(packet.getData(), 
+				packet.getLength(), packet.getSourceAddress(), packet.getSourcePort());
+			packet.release();
+			
+			// a future cancelled in the meantime loses the packet (just like
+			// a socket closed while the packet is in flight)
+			if (future != null)
+			{
+				future.complete(p);
+				return true;
+			}
+			
+			try
+			{
+				handler.packetReceived(p);
+			}
+			catch (RuntimeException e)
+			{
+				// a broken handler must not kill the callback thread
+				emu.sendEmulatorMessage("ERROR: packet handler of " + ownername 
+					+ " failed: " + e + "\n", true);
+			}
+			
+			return true;
 		}
 	}
 	
+	// a packet in flight, scheduled by the DeliveryScheduler
+	private class Delivery extends DeliveryScheduler.Task
+	{
+		private Payload packet;
+		
+		// true if the packet was thrown away before it was due
+		private boolean cancelled = false;
+		
+		// neighbours in the list of deliveries of the socket
+		private Delivery older = null;
+		private Delivery newer = null;
+		
+		public Delivery(Payload packet)
+		{
+			this.packet = packet;
+		}
+		
+		// append to the list of deliveries. the caller holds the lock
+		void link()
+		{
+			older = lastDelivery;
+			
+			if (lastDelivery == null)
+				firstDelivery = this;
+			else
+				lastDelivery.newer = this;
+			
+			lastDelivery = this;
+		}
+		
+		// remove from the list of deliveries. the caller holds the lock
+		void unlink()
+		{
+			if (older == null)
+				firstDelivery = newer;
+			else
+				older.newer = newer;
+			
+			if (newer == null)
+				lastDelivery = older;
+			else
+				newer.older = older;
+			
+			older = null;
+			newer = null;
+		}
+		
+		public void run()
+		{
+			lock.lock();
+			
+			try
+			{
+				if (cancelled)
+					return;
+				
+				unlink();
+				packetsInFlight--;
+				deliver(packet, deadline);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
 }
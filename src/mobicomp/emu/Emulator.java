@@ -8,10 +8,17 @@ package mobicomp.emu;
  */
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -23,10 +30,12 @@ import java.io.IOException;
 import java.io.File;
 import java.io.FileInputStream;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 
-import java.awt.Dimension;
 
 public class Emulator
 {
@@ -39,13 +48,32 @@ public class Emulator
 	// a vector with all registered sockets
 	private Vector allSockets;
 	
-	// number of packets sent
-	private int packetCount = 0;
+	// number of packets sent. send() is not synchronized, so the counters 
+	// need to be atomic
+	private AtomicInteger packetCount = new AtomicInteger();
 	
 	// number of packets thrown away due to errors on the link
-	private int packetErrorCount = 0;
+	private AtomicInteger packetErrorCount = new AtomicInteger();
+	
+	// number of packets thrown away by full sockets
+	private AtomicInteger overflowCount = new AtomicInteger();
+	
+	// number of packets delivered to the sockets of the sending node (not
+	// included in packetCount)
+	private AtomicInteger loopbackCount = new AtomicInteger();
+	
+	// bytes held by the queues of all sockets (packets in flight included)
+	private AtomicLong queuedBytes = new AtomicLong();
+	
+	// the registered sockets, the one holding the most bytes first (only
+	// kept up to date if there is a budget, see Options.maxQueuedBytes)
+	private QueueHeap queueHeap = new QueueHeap();
 	
-	// references the the main windows and its drawpanel
+	// the graph (nodes and links) of the emulation
+	private GraphModel graph;
+	
+	// references the the main windows and its drawpanel (both null if the
+	// emulator runs without GUI)
 	private MainWindow mainWnd;
 	private DrawPanel drawPanel;
 	
@@ -56,16 +84,58 @@ public class Emulator
 	// belongs to which node (resp. to the name of a node)
 	private Vector threadGroups = null;
 	
+	// the ThreadGroup of the emulator itself. threads of the emulator started
+	// by a client (e.g. for flashing a link) must not run in the client's group
+	private ThreadGroup emulatorThreadGroup;
+	
 	// the currently opened graph file
 	private File curFile = null;
 	
 	// the output handler
 	private OutputHandler oh;
 	
+	// the time of the emulation (real or virtual)
+	private Clock clock;
+	
+	// owns all packets delayed by a link until they are due
+	private DeliveryScheduler scheduler;
+	
+	// the receivers of a packet by sender and group
+	private ForwardingTable forwardingTable;
+	
+	// the data of all packets (null if they are kept on the heap)
+	private PacketStore packetStore = null;
+	
+	// runs the packet handlers and completes the futures of all sockets
+	// receiving asynchronously (see AsyncSocket)
+	private ExecutorService callbackExecutor;
+	
+	// the node a callback thread is currently working for (threads of the
+	// callbackExecutor don't belong to the thread group of a client)
+	private ThreadLocal callbackOwner = new ThreadLocal();
+	
+	// the context of every running client (name -> NodeContext), needed to 
+	// invalidate it when the client is removed
+	private HashMap nodeContexts = new HashMap();
+	
+	// the result of the last search through the thread groups for threads
+	// without a (valid) NodeContext - mostly threads of the emulator, which
+	// print a lot. valid as long as threadGroupsVersion doesn't change. the
+	// version is changed by threads which don't share a lock, so it must be
+	// atomic
+	private ThreadLocal cachedNodename = new ThreadLocal();
+	private AtomicInteger threadGroupsVersion = new AtomicInteger();
+	
+	// the virtual threads of clients: the main thread of each client and
+	// every virtual thread that blocked in the emulator at least once. 
+	// virtual threads can't be found by their ThreadGroup
+	private HashSet virtualClientThreads = new HashSet();
+	
 	// private default constructor (-> singleton!)
 	private Emulator()
 	{
 		ref = this;
+		emulatorThreadGroup = Thread.currentThread().getThreadGroup();
 		
 		// set a new DatagramSocketFactory
 		try
@@ -90,7 +160,7 @@ public class Emulator
 		{
 			System.out.println("ERROR: could not read from file emulator.txt");
 		}
-		
+
 		// set global settings according to the properties
 		if (System.getProperty("mobicomp.emu.outputPacketSent", "false").equals("false"))
 			Options.outputPacketSent = false;
@@ -118,22 +188,152 @@ public class Emulator
 			Options.addNodePrefix = true;
 			
 		Options.charBufferSize = Integer.parseInt(System.getProperty("mobicomp.emu.charBufferSize", "2000"));
+		Options.logBufferSize = Integer.parseInt(System.getProperty("mobicomp.emu.logBufferSize", "1048576"));
 		Options.packetBufferSize = Integer.parseInt(System.getProperty("mobicomp.emu.packetBufferSize", "20"));
 		Options.flashTime = Integer.parseInt(System.getProperty("mobicomp.emu.flashTime", "800"));
+		
+		String policy = System.getProperty("mobicomp.emu.overflowPolicy", "dropTail");
+		
+		if (policy.equals("dropTail"))
+			Options.overflowPolicy = Options.OVERFLOW_DROP_TAIL;
+		else if (policy.equals("dropOldest"))
+			Options.overflowPolicy = Options.OVERFLOW_DROP_OLDEST;
+		else if (policy.equals("dropRandom"))
+			Options.overflowPolicy = Options.OVERFLOW_DROP_RANDOM;
+		else if (policy.equals("block"))
+			Options.overflowPolicy = Options.OVERFLOW_BLOCK;
+		else
+			throw new RuntimeException("ERROR: unknown overflow policy " + policy);
+		
+		Options.receiveBufferSize = Integer.parseInt(System.getProperty("mobicomp.emu.receiveBufferSize", "0"));
+		Options.maxQueuedBytes = Long.parseLong(System.getProperty("mobicomp.emu.maxQueuedBytes", "0"));
+		
+		if (System.getProperty("mobicomp.emu.virtualTime", "false").equals("false"))
+			Options.virtualTime = false;
+		else
+			Options.virtualTime = true;
+		
+		if (System.getProperty("mobicomp.emu.offHeapPackets", "false").equals("false"))
+			Options.offHeapPackets = false;
+		else
+			Options.offHeapPackets = true;
+		
+		Options.callbackThreads = Integer.parseInt(System.getProperty(
+			"mobicomp.emu.callbackThreads", 
+			String.valueOf(Runtime.getRuntime().availableProcessors())));
+		
+		if (System.getProperty("mobicomp.emu.portDemux", "false").equals("false"))
+			Options.portDemux = false;
+		else
+			Options.portDemux = true;
+		
+		if (System.getProperty("mobicomp.emu.virtualThreads", "false").equals("false"))
+			Options.virtualThreads = false;
+		else
+			Options.virtualThreads = true;
+		
+		if (System.getProperty("mobicomp.emu.nioChannels", "false").equals("false"))
+			Options.nioChannels = false;
+		else
+			Options.nioChannels = true;
+		
+		// let DatagramChannel.open() and Selector.open() return emulated
+		// channels, too (unless emulator.txt names another provider)
+		if (Options.nioChannels &&
+			System.getProperty("java.nio.channels.spi.SelectorProvider") == null)
+			System.setProperty("java.nio.channels.spi.SelectorProvider",
+				"mobicomp.emu.EmuSelectorProvider");
+		
+		if (System.getProperty("mobicomp.emu.headless", "false").equals("false"))
+			Options.headless = false;
+		else
+			Options.headless = true;
+		
+		// without a GUI, there's no output window either
+		if (Options.headless)
+			Options.printToConsole = true;
 
 		// start handling output
 		oh = new OutputHandler();
 		oh.start();
 		
-		packetCount = 0;
+		if (Options.virtualThreads && !ClientThread.virtualThreadsSupported())
+		{
+			sendEmulatorMessage("virtual threads are not supported by this " + 
+				"JVM - the clients run on normal threads\n", true);
+			Options.virtualThreads = false;
+		}
 		
 		allSockets = new Vector();
 		groups = new HashMap();
 		threadGroups = new Vector();
 		
-		mainWnd = new MainWindow();
-        System.out.println("Get DrawPanel");
-		drawPanel = mainWnd.getDrawPanel();
+		// normal threads started by clients running on virtual threads are
+		// found in the group of all virtual threads
+		if (Options.virtualThreads)
+			addThreadGroup(ClientThread.getVirtualThreadGroup());
+		
+		// start the clock and delivering delayed packets
+		clock = new Clock(Options.virtualTime);
+		scheduler = new DeliveryScheduler(clock);
+		forwardingTable = new ForwardingTable();
+		
+		if (Options.offHeapPackets)
+			packetStore = new PacketStore();
+		scheduler.start();
+		
+		// the callback threads are shared by all nodes
+		callbackExecutor = Executors.newFixedThreadPool(
+			Math.max(1, Options.callbackThreads), 
+			new ThreadFactory()
+			{
+				private int count = 0;
+				
+				public synchronized Thread newThread(Runnable r)
+				{
+					// the pool may start a thread while a client is sending. 
+					// it must not inherit the NodeContext of that client
+					Thread t = new Thread(emulatorThreadGroup, r, 
+						"CallbackThread-" + (count++), 0, false);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		
+		graph = new GraphModel();
+		
+		if (Options.headless)
+		{
+			// no GUI at all: load the graph given in emulator.txt and start 
+			// all of its clients right away
+			String graphFile = System.getProperty("mobicomp.emu.graphFile");
+			
+			if (graphFile == null)
+			{
+				sendEmulatorMessage("ERROR: no graph file (mobicomp.emu.graphFile) given\n", true);
+				return;
+			}
+			
+			curFile = new File(graphFile);
+			
+			try
+			{
+				new GraphFileReader(curFile).readIt();
+			}
+			catch (IOException e)
+			{
+				sendEmulatorMessage("ERROR: Could not open file " + curFile.getName() + "\n", true);
+				return;
+			}
+			
+			graph.startAllClients();
+		}
+		else
+		{
+			mainWnd = new MainWindow();
+	        System.out.println("Get DrawPanel");
+			drawPanel = mainWnd.getDrawPanel();
+		}
 	}
 	
 	// show/hide output window
@@ -159,19 +359,117 @@ public class Emulator
 	// redraw the graph (eg when the color of a node has changed)
 	public void redrawGraph()
 	{
-		Dimension dim = new Dimension();
-		drawPanel.getSize(dim);
-		drawPanel.repaint(0, 0, dim.width, dim.height);
+		if (drawPanel == null)
+			return;
+		
+		drawPanel.repaint();
 	}
 	
 	public Graph getGraph()
 	{
-		return (Graph) drawPanel;
+		return graph;
+	}
+	
+	public DeliveryScheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
+	public Clock getClock()
+	{
+		return clock;
+	}
+	
+	public ForwardingTable getForwardingTable()
+	{
+		return forwardingTable;
+	}
+	
+	public PacketStore getPacketStore()
+	{
+		return packetStore;
+	}
+	
+	public ExecutorService getCallbackExecutor()
+	{
+		return callbackExecutor;
+	}
+	
+	// let the current (callback) thread work for the node named owner until
+	// it's called again with null
+	void setCallbackOwner(String owner)
+	{
+		callbackOwner.set(owner);
 	}
 	
 	public int getPacketCount()
 	{
-		return packetCount;
+		return packetCount.get();
+	}
+	
+	public int getOverflowCount()
+	{
+		return overflowCount.get();
+	}
+	
+	public int getLoopbackCount()
+	{
+		return loopbackCount.get();
+	}
+	
+	public long getQueuedBytes()
+	{
+		return queuedBytes.get();
+	}
+	
+	// take len bytes of the global budget (Options.maxQueuedBytes) for a 
+	// packet queued by socket. if the budget is used up, the socket holding
+	// the most bytes gives up its oldest packet - a few flooded sockets can't
+	// push out the packets of all others. returns false if the packet must 
+	// be thrown away. the caller must not hold the lock of any socket
+	boolean reserveBytes(EmuSocket socket, int len)
+	{
+		while (true)
+		{
+			long used = queuedBytes.get();
+			
+			if (Options.maxQueuedBytes == 0 || used + len <= Options.maxQueuedBytes)
+			{
+				if (queuedBytes.compareAndSet(used, used + len))
+					return true;
+				
+				continue;
+			}
+			
+			// the socket itself is the biggest one: its new packet goes
+			EmuSocket victim = queueHeap.peek();
+			
+			if (victim == null || victim == socket || !victim.evictOldest())
+				return false;
+		}
+	}
+	
+	// give back bytes taken by reserveBytes()
+	void releaseBytes(int len)
+	{
+		queuedBytes.addAndGet(-len);
+	}
+	
+	// the bytes in the queue of socket changed. the caller holds the lock of
+	// the socket
+	void queueChanged(EmuSocket socket)
+	{
+		if (Options.maxQueuedBytes > 0)
+			queueHeap.update(socket, socket.getQueuedBytes());
+	}
+	
+	// a socket threw a packet away because its buffer was full
+	void countOverflow()
+	{
+		overflowCount.incrementAndGet();
+		
+		if (Options.outputPacketOverflow)
+			sendEmulatorMessage("Packet thrown away due to buffer overflow\n", false);
 	}
 	
 	public String getNextNodeName()
@@ -189,9 +487,32 @@ public class Emulator
 	
 
 	// Send a packet to all members of the group p.getAddress()
-	public synchronized void send(EmuSocket sender, DatagramPacket p)
+	//
+	// NOTE: this method is NOT synchronized - all nodes send in parallel. the
+	//       links of a client are a copy-on-write list, every link decides 
+	//       under its own lock whether a packet gets lost and every socket 
+	//       guards its own queue
+	public void send(EmuSocket sender, DatagramPacket p)
+	{
+		// the only copy of the data. the sender may reuse its packet as soon
+		// as we return
+		Payload payload = new Payload(p, getNodeAddress(sender), sender.getLocalPort());
+		
+		try
+		{
+			send(sender, payload);
+		}
+		finally
+		{
+			payload.release();
+		}
+	}
+	
+	// send a payload to all members of the group payload.getAddress(). the
+	// caller keeps its reference to the payload
+	public void send(EmuSocket sender, Payload payload)
 	{
-		Client senderClient = drawPanel.getClient(sender.getOwnerName());
+		Client senderClient = graph.getClient(sender.getOwnerName());
 		
 		if (senderClient == null)
 		{
@@ -199,30 +520,34 @@ public class Emulator
 			return;
 		}
 		
-		Vector neighbors = senderClient.getLinks();
+		// a packet to the loopback address never leaves the node, both 
+		// broadcast addresses reach the same sockets
+		InetAddress dest = payload.getAddress();
 		
-		if (neighbors == null || neighbors.isEmpty())
-		{
-			// this client has no links - dont send the packet
-			return;
-		}
+		if (dest.isLoopbackAddress())
+			dest = senderClient.getAddress();
+		else if (GraphModel.isBroadcastAddress(dest))
+			dest = GraphModel.BROADCAST_ADDRESS;
+		
+		ForwardingTable.Route[] routes = forwardingTable.lookup(
+			senderClient, dest, payload.getPort());
 		
-		for (Iterator iter = neighbors.iterator(); iter.hasNext(); )
+		for (int i = 0; i < routes.length; i++)
 		{
-			Link curLink = (Link) iter.next();
+			Link curLink = routes[i].getLink();
 			
-			switch (curLink.send(p, senderClient, sender))
+			switch (curLink.send(payload, routes[i].getReceiver(), routes[i].getSockets()))
 			{
 				case Link.PACKET_SENT:
 				{
 					// packet was successfully send - increase counter
-					this.packetCount++;
+					this.packetCount.incrementAndGet();
 					
 					if (Options.outputPacketSent){
 						sendEmulatorMessage(
 							"Packet sent from " + sender.getOwnerName() + " to "
 							+ curLink.getReceiver(senderClient).getName() 
-							+ "\n Content: " + toHexString(p.getData()) + "\n"
+							+ "\n Content: " + toHexString(payload.getData()) + "\n"
 							, false);
 					}	
 					break;
@@ -231,7 +556,7 @@ public class Emulator
 				case Link.PACKET_LOST:
 				{
 					// simulated error - increase error counter
-					this.packetErrorCount++;
+					this.packetErrorCount.incrementAndGet();
 					
 					if (Options.outputPacketLost)
 						sendEmulatorMessage(
@@ -253,39 +578,75 @@ public class Emulator
 			}
 		}
 		
-		// send the packet to the sender socket, too
-		sender.receivePacket(p, 0);
+		// a multicast packet stays off the sending node if the sender turned 
+		// off IP_MULTICAST_LOOP
+		if (dest.isMulticastAddress() && !sender.isMulticastLoop())
+			return;
+		
+		// send the packet to the sender socket, too. the sender never waits 
+		// for room in its own buffer - it might be the thread emptying it
+		if (!Options.portDemux && dest.isMulticastAddress())
+		{
+			sender.receivePacket(payload, 0, false);
+			loopbackCount.incrementAndGet();
+			return;
+		}
+		
+		// like UDP: every socket of the sending node that receives from the
+		// group (or its own address) and port gets a copy
+		EmuSocket[] local = senderClient.getMembers(dest, payload.getPort());
+		
+		for (int i = 0; i < local.length; i++)
+		{
+			local[i].receivePacket(payload, 0, false);
+			loopbackCount.incrementAndGet();
+		}
 	}
 	
 	// Register a new socket in the system
 	//
 	// NOTE: The socket is bound to a local address/port, but has NOT yet joined
 	//       a multicast group.
-	public void register(EmuSocket socket, int port, InetAddress addr)
+	//
+	// returns the port the socket is bound to (a free ephemeral port of the 
+	// node if port is 0)
+	public int register(EmuSocket socket, int port, InetAddress addr)
 	{
 		if (socket.getOwnerName() == null)
 		{
 			// the emulator could not identify the owner of the socket
-			JOptionPane.showMessageDialog(mainWnd, 
+			showError( 
 				"A socket was opened but the emulator could not identify\n" +
 				"its owner. Please do not create sockets as a reaction\n" +
 				"to an event from a GUI component.\n\n" +
 				"For further information, please consult the documentation",
-				"Socket error",
-				JOptionPane.ERROR_MESSAGE);
+				"Socket error");
 			
-			return;
+			return port;
+		}
+		
+		Client owner = graph.getClient(socket.getOwnerName());
+		
+		if (port == 0)
+			port = owner.allocatePort();
+		
+		synchronized (this)
+		{
+			allSockets.add(new VectorElement(socket, port, addr));
 		}
 		
-		allSockets.add(new VectorElement(socket, port, addr));
+		queueHeap.add(socket);
 		
 		// tell the client about the new socket
-		drawPanel.getClient(socket.getOwnerName()).addSocket(socket);
+		socket.setLocalPort(port);
+		owner.addSocket(socket);
+		
+		return port;
 	}
 	
 	// Add a socket to a group. Of course, a socket can be connected to multiple
 	// multicast groups
-	public void join(EmuSocket socket, InetAddress addr)
+	public synchronized void join(EmuSocket socket, InetAddress addr)
 	{
 		if (!groups.containsKey(addr))
 		{
@@ -306,10 +667,12 @@ public class Emulator
 			// add the socket as a new member
 			curMembers.add(socket);
 		}
+		
+		updateMembers(socket);
 	}
 	
 	// Remove a socket from the system
-	public void unregister(EmuSocket socket)
+	public synchronized void unregister(EmuSocket socket)
 	{
 		// remove the socket from all groups
 		Set keys = groups.keySet();
@@ -328,15 +691,21 @@ public class Emulator
 			if (curElem.socket == socket)
 			{
 				allSockets.remove(curElem);
-				return;
+				break;
 			}
 		}
 		
-		drawPanel.getClient(socket.getOwnerName()).removeSocket(socket);
+		queueHeap.remove(socket);
+		
+		// tell the client (invalidates the forwarding table, too)
+		Client owner = graph.getClient(socket.getOwnerName());
+		
+		if (owner != null)
+			owner.removeSocket(socket);
 	}
 	
 	// Remove a socket from the multicast group with address addr
-	public void leave(EmuSocket socket, InetAddress addr)
+	public synchronized void leave(EmuSocket socket, InetAddress addr)
 	{
 		Vector groupMembers = (Vector) groups.get(addr);
 		
@@ -346,6 +715,28 @@ public class Emulator
 		{
 			groups.remove(addr);
 		}
+		
+		updateMembers(socket);
+	}
+	
+	// the unicast address of the node owning socket (null if it's unknown)
+	public InetAddress getNodeAddress(EmuSocket socket)
+	{
+		Client owner = graph.getClient(socket.getOwnerName());
+		
+		return (owner == null) ? null : owner.getAddress();
+	}
+	
+	// the groups of socket changed - its node updates its table of members
+	// (invalidates the forwarding table, too)
+	private void updateMembers(EmuSocket socket)
+	{
+		Client owner = graph.getClient(socket.getOwnerName());
+		
+		if (owner != null)
+			owner.updateMembers();
+		else
+			forwardingTable.invalidate();
 	}
 	
 	public boolean startClient(Client client)
@@ -357,18 +748,29 @@ public class Emulator
 		
 		if (client.getClassName() == null)
 		{
-			JOptionPane.showMessageDialog(mainWnd, 
+			showError( 
 				"Please specify a class name",
-				"No class name found",
-				JOptionPane.ERROR_MESSAGE);
+				"No class name found");
+			
+			if (mainWnd == null)
+			{
+				// nobody can fix it - skip this client
+				return true;
+			}
 				
 			EditClientWindow ecWnd = new EditClientWindow(mainWnd, client);
 			return false;
 		}
 		
-		// the input seems to be ok - create the new instance of the program
-		ThreadGroup newGroup = new ThreadGroup(client.getName());
-		addThreadGroup(newGroup);
+		// the input seems to be ok - create the new instance of the program.
+		// virtual threads don't need a group of their own
+		ThreadGroup newGroup = null;
+		
+		if (!Options.virtualThreads)
+		{
+			newGroup = new ThreadGroup(client.getName());
+			addThreadGroup(newGroup);
+		}
 		
 		// let's try to start that program
 		ClientThread dummy = new ClientThread(client, newGroup);
@@ -377,17 +779,29 @@ public class Emulator
 		if (ans == null)
 		{
 			oh.addClient(client.getName());
+			
+			synchronized (nodeContexts)
+			{
+				nodeContexts.put(client.getName(), dummy.getContext());
+			}
+			
+			// the new thread isn't counted as running client thread before
+			// it has really started. until then, the time must stand still
+			// (released by the ClientThread)
+			clock.hold();
 			dummy.start();
 			return true;
 		}
 			
 		// there seems to be some problem
-		JOptionPane.showMessageDialog(mainWnd, 
-			ans,
-			"Error",
-			JOptionPane.ERROR_MESSAGE);
-			
-		removeThreadGroup(newGroup);
+		showError(ans, "Error");
+		
+		if (newGroup != null)
+			removeThreadGroup(newGroup);
+		
+		if (mainWnd == null)
+			return true;
+		
 		EditClientWindow ecWnd = new EditClientWindow(mainWnd, client);
 		return ecWnd.isCanceled();
 	}
@@ -398,12 +812,12 @@ public class Emulator
 		if (!c.isRunning())
 		{
 			// remove all links starting/ending at the client
-			Vector linksToRemove = c.getLinks();
+			List linksToRemove = c.getLinks();
 			while (!linksToRemove.isEmpty())
-				drawPanel.removeLink((Link) linksToRemove.get(0));
+				graph.removeLink((Link) linksToRemove.get(0));
 				
 			// just remove the client from the graph
-			drawPanel.removeClient(c);
+			graph.removeClient(c);
 			return;
 		}
 		
@@ -431,16 +845,28 @@ public class Emulator
 		}
 		
 		// remove all links starting/ending at the client
-		Vector linksToRemove = c.getLinks();
+		List linksToRemove = c.getLinks();
 		while (!linksToRemove.isEmpty())
-			drawPanel.removeLink((Link) linksToRemove.get(0));
+			graph.removeLink((Link) linksToRemove.get(0));
 			
 		// remove the node from the graph
-		drawPanel.removeClient(c);
+		graph.removeClient(c);
 		
 		// remove client from the output handler
 		oh.removeClient(c.getName());
 		
+		// threads of the client which are still running don't get its name
+		// from the cache any more
+		synchronized (nodeContexts)
+		{
+			NodeContext context = (NodeContext) nodeContexts.remove(c.getName());
+			
+			if (context != null)
+				context.invalidate();
+		}
+		
+		threadGroupsVersion.incrementAndGet();
+		
 		// NOTE:
 		//
 		// The program is still running! There is no way to force a running
@@ -456,6 +882,17 @@ public class Emulator
 		oh.sendEmuMsg(msg, error);
 	}
 	
+	// tell the user about an error - in a dialog or, without GUI, as message
+	// of the emulator
+	private void showError(String msg, String title)
+	{
+		if (mainWnd == null)
+			sendEmulatorMessage(title + ": " + msg + "\n", true);
+		else
+			JOptionPane.showMessageDialog(mainWnd, msg, title, 
+				JOptionPane.ERROR_MESSAGE);
+	}
+	
 	// loads a graph from file
 	// returns true if the graph was really loaded, false if not
 	public boolean loadGraph()
@@ -476,7 +913,7 @@ public class Emulator
 		
 		// reset current graph
 		curFile = dlg.getSelectedFile();
-		drawPanel.reset();
+		graph.reset();
 		
 		// read the graph from file
 		GraphFileReader reader;
@@ -553,14 +990,178 @@ public class Emulator
 	private void addThreadGroup(ThreadGroup group)
 	{
 		threadGroups.add(group);
+		threadGroupsVersion.incrementAndGet();
 	}
 	
 	private void removeThreadGroup(ThreadGroup group)
 	{
 		threadGroups.remove(group);
+		threadGroupsVersion.incrementAndGet();
+	}
+	
+	// count the current thread as client thread if it is a virtual thread of
+	// a client (the others are found by their ThreadGroup)
+	void addClientThread()
+	{
+		NodeContext context = NodeContext.get();
+		
+		if (context == null || !context.isVirtual() || 
+			!ClientThread.isVirtual(Thread.currentThread()))
+		{
+			return;
+		}
+		
+		synchronized (virtualClientThreads)
+		{
+			virtualClientThreads.add(Thread.currentThread());
+		}
+	}
+	
+	public ThreadGroup getEmulatorThreadGroup()
+	{
+		return emulatorThreadGroup;
+	}
+	
+	// number of threads currently running in all clients (needed to know 
+	// when all of them are blocked in virtual time)
+	public int countClientThreads()
+	{
+		int count = 0;
+		
+		synchronized (threadGroups)
+		{
+			for (Iterator iter=threadGroups.iterator(); iter.hasNext(); )
+				count += ((ThreadGroup) iter.next()).activeCount();
+		}
+		
+		synchronized (virtualClientThreads)
+		{
+			for (Iterator iter=virtualClientThreads.iterator(); iter.hasNext(); )
+			{
+				if (((Thread) iter.next()).isAlive())
+					count++;
+				else
+					iter.remove();
+			}
+		}
+		
+		return count;
 	}
 	
+	// true if no client thread can go on by itself: every thread waits 
+	// without a timeout (e.g. in Thread.join() or for a lock that is never
+	// released before the time moves on) or is blocked on a lock held by such
+	// a thread. this happens when several threads of a client share a socket
+	// - java.net.DatagramSocket lets only one of them into receive() at a 
+	// time, the others wait for it outside of the emulator. the virtual time
+	// can't move on then. it's only used to tell the user so (see 
+	// DeliveryScheduler), the state of other threads can change while it 
+	// looks at them
+	public boolean areClientThreadsStuck()
+	{
+		Vector threads = new Vector();
+		
+		synchronized (threadGroups)
+		{
+			for (Iterator iter=threadGroups.iterator(); iter.hasNext(); )
+			{
+				ThreadGroup curGroup = (ThreadGroup) iter.next();
+				Thread[] list = new Thread[curGroup.activeCount() + 16];
+				int n = curGroup.enumerate(list);
+				
+				for (int i = 0; i < n; i++)
+					threads.add(list[i]);
+			}
+		}
+		
+		// virtual threads are unknown to the ThreadMXBean. a waiting one is
+		// treated like a platform thread waiting, anything else can go on 
+		// (we can't tell who holds the lock a blocked one waits for)
+		synchronized (virtualClientThreads)
+		{
+			for (Iterator iter=virtualClientThreads.iterator(); iter.hasNext(); )
+			{
+				Thread.State state = ((Thread) iter.next()).getState();
+				
+				if (state != Thread.State.WAITING && 
+					state != Thread.State.TERMINATED)
+				{
+					return false;
+				}
+			}
+		}
+		
+		long[] ids = new long[threads.size()];
+		
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = ((Thread) threads.get(i)).getId();
+		
+		ThreadInfo[] infos = ManagementFactory.getThreadMXBean().getThreadInfo(ids);
+		HashSet waiting = new HashSet();
+		
+		for (int i = 0; i < infos.length; i++)
+		{
+			// null: the thread has terminated in the meantime
+			if (infos[i] == null)
+				continue;
+			
+			Thread.State state = infos[i].getThreadState();
+			
+			if (state == Thread.State.WAITING)
+				waiting.add(Long.valueOf(ids[i]));
+			else if (state != Thread.State.BLOCKED)
+				return false;
+		}
+		
+		for (int i = 0; i < infos.length; i++)
+		{
+			if (infos[i] != null && 
+				infos[i].getThreadState() == Thread.State.BLOCKED &&
+				!waiting.contains(Long.valueOf(infos[i].getLockOwnerId())))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	// the name of the node thread belongs to (null for threads of the 
+	// emulator). called for every byte a client prints, so the current 
+	// thread doesn't search the thread groups more than once
 	public String mapThreadToNodename(Thread thread)
+	{
+		if (thread != Thread.currentThread())
+			return findThreadGroup(thread);
+		
+		// a callback thread running a packet handler of a node
+		if (callbackOwner.get() != null)
+			return (String) callbackOwner.get();
+		
+		// a thread started by a client (the only way to find threads of 
+		// clients running on virtual threads)
+		NodeContext context = NodeContext.get();
+		
+		if (context != null && context.isValid())
+			return context.getNodename();
+		
+		// read the version before searching - if the groups change in the
+		// meantime, the next call searches again
+		int version = threadGroupsVersion.get();
+		Nodename cached = (Nodename) cachedNodename.get();
+		
+		if (cached != null && cached.version == version)
+			return cached.name;
+		
+		String name = findThreadGroup(thread);
+		cachedNodename.set(new Nodename(name, version));
+		
+		return name;
+	}
+	
+	// the name of the thread group of a client thread belongs to (null if 
+	// there is none)
+	private String findThreadGroup(Thread thread)
 	{
 		ThreadGroup lookFor = thread.getThreadGroup();
 		
@@ -573,6 +1174,10 @@ public class Emulator
 		{
 			ThreadGroup curGroup = (ThreadGroup) iter.next();
 			
+			// shared by the threads of all clients on virtual threads
+			if (curGroup == ClientThread.getVirtualThreadGroup())
+				continue;
+			
 			if (curGroup.parentOf(lookFor))
 			{
 				// we found the thread group we looked for
@@ -679,6 +1284,20 @@ public class Emulator
 		}
 	}
 
+	// a node name found for a thread and the version of the thread groups it
+	// was found in
+	private static class Nodename
+	{
+		public String name;
+		public int version;
+		
+		public Nodename(String name, int version)
+		{
+			this.name = name;
+			this.version = version;
+		}
+	}
+	
 	// A small class to save a socket with its address & port in the vector
 	private class VectorElement
 	{
@@ -0,0 +1,160 @@
+package mobicomp.emu;
+
+/*
+ * ForwardingTable
+ *
+ * a cache of the routes of a multicast packet. for every sender node,
+ * multicast group and port, it keeps the outgoing links of the sender and the
+ * sockets at the other end of each link which joined the group and are bound
+ * to the port (see Client.getMembers()). without it, every packet would look
+ * up the members at every neighbour.
+ *
+ * a packet sent to the unicast address of a node (see GraphModel) only 
+ * takes the links leading to that node, to the sockets bound to its port.
+ * nodes which aren't neighbours of the sender can't be reached. a broadcast 
+ * packet takes all links, to every socket bound to its port
+ *
+ * the routes are computed on the first packet and stay valid until the graph
+ * or the group memberships change (join, leave, register, unregister, adding
+ * or removing a link). then the whole table is thrown away - those changes are
+ * rare compared to the number of packets.
+ *
+ * lookups don't lock anything. a route computed while the graph changes is
+ * returned once but not stored (see generation)
+ *
+ */
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ForwardingTable
+{
+	// sender client -> (InetSocketAddress(group, port) -> Route[]). the port
+	// of a group is 0 if Options.portDemux is off
+	private ConcurrentHashMap routes = new ConcurrentHashMap();
+
+	// incremented by every invalidation. a route is only stored if no
+	// invalidation happened while it was computed
+	private int generation = 0;
+
+	// returns the routes of a packet sent by sender to group and port
+	public Route[] lookup(Client sender, InetAddress group, int port)
+	{
+		if (!Options.portDemux && group.isMulticastAddress())
+			port = 0;
+
+		InetSocketAddress key = new InetSocketAddress(group, port);
+		ConcurrentHashMap byGroup = (ConcurrentHashMap) routes.get(sender);
+
+		if (byGroup != null)
+		{
+			Route[] cached = (Route[]) byGroup.get(key);
+
+			if (cached != null)
+				return cached;
+		}
+
+		int gen;
+
+		synchronized (this)
+		{
+			gen = generation;
+		}
+
+		Route[] computed = compute(sender, group, port);
+
+		synchronized (this)
+		{
+			if (gen == generation)
+			{
+				byGroup = (ConcurrentHashMap) routes.get(sender);
+
+				if (byGroup == null)
+				{
+					byGroup = new ConcurrentHashMap();
+					routes.put(sender, byGroup);
+				}
+
+				byGroup.put(key, computed);
+			}
+		}
+
+		return computed;
+	}
+
+	// forget all routes. must be called AFTER the change of the graph or the
+	// group membership
+	public synchronized void invalidate()
+	{
+		generation++;
+		routes.clear();
+	}
+
+	// find the receiving sockets on all links of sender
+	private Route[] compute(Client sender, InetAddress group, int port)
+	{
+		List links = sender.getLinks();
+		Vector ret = new Vector();
+
+		for (Iterator iter = links.iterator(); iter.hasNext(); )
+		{
+			Link curLink = (Link) iter.next();
+			Client receiver = curLink.getReceiver(sender);
+
+			if (receiver == null)
+			{
+				// link only leads to sender (unidirectional)
+				continue;
+			}
+
+			// a unicast packet only goes to its destination
+			if (!group.isMulticastAddress() && 
+				!group.equals(GraphModel.BROADCAST_ADDRESS) &&
+				!group.equals(receiver.getAddress()))
+			{
+				continue;
+			}
+
+			// links without any member stay in the table - the error settings
+			// of the link are applied to every packet, no matter whether
+			// somebody listens
+			ret.add(new Route(curLink, receiver, receiver.getMembers(group, port)));
+		}
+
+		return (Route[]) ret.toArray(new Route[ret.size()]);
+	}
+
+	// one outgoing link of a sender and the sockets reached over it
+	public static class Route
+	{
+		private Link link;
+		private Client receiver;
+		private EmuSocket[] sockets;
+
+		Route(Link link, Client receiver, EmuSocket[] sockets)
+		{
+			this.link = link;
+			this.receiver = receiver;
+			this.sockets = sockets;
+		}
+
+		public Link getLink()
+		{
+			return link;
+		}
+
+		public Client getReceiver()
+		{
+			return receiver;
+		}
+
+		public EmuSocket[] getSockets()
+		{
+			return sockets;
+		}
+	}
+}
@@ -16,6 +16,9 @@ public interface Graph
 	
 	public Client getClient(String name);
 	
+	public void renameClient(Client client, String name);
+	public void moveClient(Client client, int x, int y);
+	
 	public Vector getClientNames();
 	
 	public Client createClient();
@@ -44,4 +47,7 @@ public interface Graph
 	
 	public Vector getClients();
 	public Vector getLinks();
+	
+	public void addGraphListener(GraphListener listener);
+	public void removeGraphListener(GraphListener listener);
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package mobicomp.emu;
+
+/*
+ * interface GraphListener
+ *
+ * gets notified whenever a graph changes (nodes or links added, removed, moved
+ * or renamed). used by the DrawPanel to redraw the graph
+ *
+ */
+
+public interface GraphListener
+{
+	public void graphChanged(Graph graph);
+}
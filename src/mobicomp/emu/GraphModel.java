@@ -0,0 +1,421 @@
+package mobicomp.emu;
+
+/*
+ * GraphModel
+ *
+ * the implementation of the interface Graph. it doesn't depend on any GUI
+ * classes, so the emulator can run without a window, too. the clients are
+ * indexed by their name (emulator needs to look up the sender of every
+ * packet) and every client keeps its own links (adjacency list). views like
+ * the DrawPanel register as GraphListener to be notified about changes
+ *
+ */
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Vector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class GraphModel implements Graph {
+	// minimal distance between two nodes (*r)
+	// must be greater or equal to 3 + 2*sqrt(2)
+
+	// public static final double MIN_DISTANCE = (3+2*Math.sqrt(2));
+	public static final double MIN_DISTANCE = 7.5;
+
+	// reference to the Emulator
+	private Emulator emu;
+
+	// lists of all nodes and all (closed!) links.
+	private Vector clients;
+
+	private Vector links;
+
+	// name -> client. read by every send() without any lock
+	private Map clientsByName;
+
+	// unicast address -> client. every client added to the graph gets the
+	// next free address of 10.0.0.0/16
+	private Map clientsByAddress;
+
+	private int nextAddress = 1;
+
+	// the broadcast address. packets sent to the broadcast address of the 
+	// subnet (10.0.255.255) are sent to this one
+	public static final InetAddress BROADCAST_ADDRESS = toAddress(255, 255, 255, 255);
+	private static final InetAddress SUBNET_BROADCAST_ADDRESS = toAddress(10, 0, 255, 255);
+
+	// everybody who wants to know about changes
+	private List listeners;
+
+	public GraphModel() {
+		this.emu = Emulator.getRef();
+
+		clients = new Vector();
+		links = new Vector();
+		clientsByName = new ConcurrentHashMap();
+		clientsByAddress = new ConcurrentHashMap();
+		listeners = new CopyOnWriteArrayList();
+	}
+
+	// tell all listeners that the graph has changed
+	private void fireGraphChanged() {
+		for (Iterator iter = listeners.iterator(); iter.hasNext();) {
+			((GraphListener) iter.next()).graphChanged(this);
+		}
+	}
+
+	// moves a client to another position. if it would intersect with another
+	// client, the nearest non-intersection position is chosen
+	public void moveClient(Client node, int x, int y) {
+		if (node == null)
+			throw new NullPointerException();
+
+		place(node, x, y);
+		fireGraphChanged();
+	}
+
+	private void place(Client node, int x, int y) {
+		// check for overlapping
+		if (!overlaps(node, x, y)) {
+			node.moveTo(x, y);
+			return;
+		}
+
+		// we have an intersection and need to find the nearest point
+		// without intersection. it get's very slow here...
+
+		int distance = 1;
+
+		while (true) {
+			for (int i = 0; i < 2 * distance; i++) {
+				if (!overlaps(node, x - distance + i, y - distance)) {
+					node.moveTo(x - distance + i, y - distance);
+					return;
+				}
+
+				if (!overlaps(node, x + distance, y - distance + i)) {
+					node.moveTo(x + distance, y - distance + i);
+					return;
+				}
+
+				if (!overlaps(node, x + distance - i, y + distance)) {
+					node.moveTo(x + distance - i, y + distance);
+					return;
+				}
+
+				if (!overlaps(node, x - distance, y + distance - i)) {
+					node.moveTo(x - distance, y + distance - i);
+					return;
+				}
+			}
+
+			distance++;
+		}
+
+		// we will never reach this point
+	}
+
+	// check wheter or not the coordinate (x,y) is a position for the client
+	// where it doesn't intersect with another client. this method is slow as
+	// hell - for a big graph, this must be rewritten using a fancy data
+	// structure
+	private boolean overlaps(Client node, int x, int y) {
+		for (Iterator iter = clients.iterator(); iter.hasNext();) {
+			Client nc = (Client) iter.next();
+
+			if ((nc != node)
+					&& (Math.pow(x - nc.getX(), 2) + Math.pow(y - nc.getY(), 2) < MIN_DISTANCE
+							* Math.pow(Client.RADIUS, 2)))
+				return true;
+		}
+
+		return false;
+	}
+
+	/* ********************** from interface Graph ************************** */
+	public void addClient(Client client) {
+		if (client == null)
+			throw new NullPointerException();
+
+		place(client, client.getX(), client.getY());
+		clients.add(client);
+		clientsByName.put(client.getName(), client);
+
+		InetAddress address = nextFreeAddress();
+		clientsByAddress.put(address, client);
+		client.setAddress(address);
+
+		fireGraphChanged();
+	}
+
+	// returns the client with the unicast address address or null
+	public Client getClientByAddress(InetAddress address) {
+		if (address == null)
+			return null;
+
+		return (Client) clientsByAddress.get(address);
+	}
+
+	// true if address is the broadcast address or the broadcast address of
+	// the subnet
+	public static boolean isBroadcastAddress(InetAddress address) {
+		return BROADCAST_ADDRESS.equals(address)
+				|| SUBNET_BROADCAST_ADDRESS.equals(address);
+	}
+
+	private static InetAddress toAddress(int a, int b, int c, int d) {
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte) a, (byte) b,
+					(byte) c, (byte) d });
+		} catch (UnknownHostException e) {
+			// can't happen - the address has 4 bytes
+			throw new RuntimeException("ERROR: " + e);
+		}
+	}
+
+	// the next address of 10.0.0.0/16 which isn't used (x.y.z.0 and 
+	// x.y.z.255 are skipped)
+	private synchronized InetAddress nextFreeAddress() {
+		for (int tries = 0; tries < 65536; tries++) {
+			int i = nextAddress;
+			nextAddress = (nextAddress + 1) & 0xffff;
+
+			if ((i & 0xff) == 0 || (i & 0xff) == 0xff)
+				continue;
+
+			InetAddress address = toAddress(10, 0, i >> 8, i & 0xff);
+
+			if (!clientsByAddress.containsKey(address))
+				return address;
+		}
+
+		throw new RuntimeException("ERROR: no free address left");
+	}
+
+	// remove a client from the graph
+	//
+	// NOTE: it is assumed that this client has NO links and NO open sockets !
+	public void removeClient(Client client) {
+		clients.remove(client);
+		clientsByName.remove(client.getName(), client);
+
+		if (client.getAddress() != null)
+			clientsByAddress.remove(client.getAddress(), client);
+
+		fireGraphChanged();
+	}
+
+	// returns a client given its name or null if there is no client called name
+	public Client getClient(String name) {
+		if (name == null)
+			return null;
+
+		return (Client) clientsByName.get(name);
+	}
+
+	// change the name of a client. it is assumed that the name is unique! the
+	// client doesn't need to be part of the graph yet
+	public void renameClient(Client client, String name) {
+		if (clientsByName.remove(client.getName(), client)) {
+			client.setName(name);
+			clientsByName.put(name, client);
+		} else {
+			client.setName(name);
+		}
+
+		fireGraphChanged();
+	}
+
+	// returns a list of all names of the clients
+	public Vector getClientNames() {
+		Vector ret = new Vector();
+
+		for (Iterator iter = clients.iterator(); iter.hasNext();)
+			ret.add(((Client) iter.next()).getName());
+
+		return ret;
+	}
+
+	// add a new client
+	public Client createClient() {
+		return new Client(emu.getNextNodeName(), 100, 100);
+	}
+
+	// add a new client at a default position
+	public Client createClient(String name) {
+		return new Client(name, 100, 100);
+	}
+
+	// add a new client
+	public Client createClient(String name, String className, String params,
+			String classpath) {
+		return new Client(name, className, params, classpath, 100, 100);
+	}
+
+	// add a new client with a default name
+	public Client createClient(int x, int y) {
+		return new Client(emu.getNextNodeName(), x, y);
+	}
+
+	// add a new client
+	public Client createClient(String name, int x, int y) {
+		return new Client(name, x, y);
+	}
+
+	// add a new client
+	public Client createClient(String name, String className, String params,
+			String classpath, int x, int y) {
+		return new Client(name, className, params, classpath, x, y);
+	}
+
+	public void addLink(Link link) {
+		if (link == null)
+			throw new NullPointerException();
+
+		links.add(link);
+		link.getStart().addLink(link);
+		if (link.isBidirectional()) {
+			link.getEnd().addLink(link);
+		}
+		fireGraphChanged();
+	}
+
+	public void removeLink(Link link) {
+		if (link == null)
+			throw new NullPointerException();
+
+		links.remove(link);
+		link.getStart().removeLink(link);
+		link.getEnd().removeLink(link);
+		fireGraphChanged();
+	}
+
+	public Link getLink(Client c1, Client c2) {
+		if (c1 == null || c2 == null)
+			throw new NullPointerException();
+
+		// every link is known by its start point
+		for (Iterator iter = c1.getLinks().iterator(); iter.hasNext();) {
+			Link curLink = (Link) iter.next();
+
+			if (curLink.conntects(c1, c2))
+				return curLink;
+		}
+
+		for (Iterator iter = c2.getLinks().iterator(); iter.hasNext();) {
+			Link curLink = (Link) iter.next();
+
+			if (curLink.conntects(c1, c2))
+				return curLink;
+		}
+
+		return null;
+	}
+
+	// create a new closed link
+	public Link createLink(Client src, Client dest) {
+		if (src == null || dest == null)
+			throw new NullPointerException();
+
+		return new Link(src, dest);
+	}
+
+	// create a new open link
+	public Link createLink(Client src, int destx, int desty) {
+		return new Link(src, destx, desty);
+	}
+
+	// return true if c1 and c2 are linked in the graph, false otherwise
+	public boolean isLinked(Client c1, Client c2) {
+		if (c1 == null || c2 == null)
+			throw new NullPointerException();
+
+		for (Iterator iter = c1.getLinks().iterator(); iter.hasNext();) {
+			Link curLnk = (Link) iter.next();
+
+			if ((curLnk.getStart() == c2) || (curLnk.getEnd() == c2)) {
+				return true;
+			}
+		}
+
+		// if unidirectional links exist...
+		for (Iterator iter = c2.getLinks().iterator(); iter.hasNext();) {
+			Link curLnk = (Link) iter.next();
+
+			if ((curLnk.getStart() == c1) || (curLnk.getEnd() == c1)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public int getNumberOfClients() {
+		return clients.size();
+	}
+
+	public int getNumberOfLinks() {
+		return links.size();
+	}
+
+	public Vector getClients() {
+		return clients;
+	}
+
+	public Vector getLinks() {
+		return links;
+	}
+
+	// reset the graph (= remove all links and nodes)
+	public void reset() {
+		while (!clients.isEmpty()) {
+			emu.removeClient((Client) clients.firstElement());
+		}
+
+		// a new graph gets the same addresses again
+		synchronized (this) {
+			nextAddress = 1;
+		}
+	}
+
+	// start all clients that are not running yet
+	public void startAllClients() {
+		Clock clock = emu.getClock();
+
+		// in virtual time, the clients started first must not run ahead of
+		// the others
+		clock.hold();
+
+		try {
+			// iterate over all clients and try to start them
+			for (Iterator iter = clients.iterator(); iter.hasNext();) {
+				Client cur = (Client) iter.next();
+
+				if (!cur.isRunning()) {
+					// try to start it
+					while (!emu.startClient(cur)) {
+						// retry until it works
+					}
+				}
+			}
+		} finally {
+			clock.release();
+		}
+	}
+
+	public void addGraphListener(GraphListener listener) {
+		if (listener != null)
+			listeners.add(listener);
+	}
+
+	public void removeGraphListener(GraphListener listener) {
+		listeners.remove(listener);
+	}
+
+	/* ********************* end of interface Graph ************************* */
+}
@@ -8,26 +8,17 @@ package mobicomp.emu;
  * a link can either be closed (a client sits on both ends) or open (the user is
  * currently dragging around on end of the link - the other end is fixed at a
  * client). there can be at most one open socket at the time
+ *
+ * the link is drawn by the DrawPanel
  *  
  */
 
-import java.util.Vector;
-import java.util.Iterator;
-import java.net.DatagramPacket;
-import java.awt.*;
-
 import java.util.Random;
 
 public class Link {
-    // some constants for drawing
-    public static final Color RUNNING_LINK_COLOR = new Color(0.0f, 0.0f, 1.0f);
-    public static final Color SLEEPING_LINK_COLOR = new Color(1.0f, 0.0f, 0.0f);
-    public static final Color USED_LINK_COLOR = new Color(0.0f, 1.0f, 0.0f);
+    // how close to the link (or its ends) a click has to be to hit it
     public static final int CATCH_RADIUS = 10;
     public static final int INTERSECTION_DISTANCE = 3;
-    public static final int ARROW_LENGTH = 10;
-    public static final int ARROW_WIDTH = 8;
-    public static final int LINK_WIDTH = 2;
 
     // some constants for feedback for send()
     // NO_GROUP_MEMBER means that the receiver has no socket that listens to
@@ -46,13 +37,6 @@ public class Link {
     public static final int CONST_ERROR = 2;
     public static final int DETERM_ERROR = 3;
 
-    // two strokes for drawing the link
-    private static final BasicStroke normal = new BasicStroke(LINK_WIDTH);
-
-    private static final float dashPattern[] = { 8.0f };
-
-    private static final BasicStroke dashed = new BasicStroke(LINK_WIDTH, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10.0f, dashPattern, 0.0f);
-
     // start and endpoint
     private Client start;
 
@@ -82,23 +66,24 @@ public class Link {
 
     private int lostCount = 0;
 
-    // flashing -> change color of the arrow
-    private boolean flashingStart = false;
-
-    private boolean flashingEnd = false;
+    // flashing -> change color of the arrow. the time (in ms, like
+    // System.currentTimeMillis()) until the arrow pointing to the start
+    // (end) is shown in another color
+    private volatile long flashingStartUntil = 0;
 
-    private FlashLinkThread flashThreadStart = null;
+    private volatile long flashingEndUntil = 0;
 
-    private FlashLinkThread flashThreadEnd = null;
+    // coordinates of the end of an open link
+    private int openX;
 
-    // coordinates of start and endpoint
-    private Point openEnd;
+    private int openY;
 
     // constructor to create an open link (other end not fixed yet)
     public Link(Client start, int endX, int endY) {
         this.start = start;
         this.end = null;
-        this.openEnd = new Point(endX, endY);
+        this.openX = endX;
+        this.openY = endY;
         this.isBidirectional = true;
     }
 
@@ -119,7 +104,7 @@ public class Link {
 
     // return the client on the end of the links which is !=sender
     public Client getReceiver(Client sender) {
-        if (openEnd != null || this.end == null) {
+        if (this.end == null) {
             // an open link has no receiver!
             return null;
         }
@@ -136,51 +121,26 @@ public class Link {
         return null;
     }
 
-    // send a packet
-    public int send(DatagramPacket p, Client sender, EmuSocket socket) {
-        boolean sentSomething = false;
-
-        Client receiver = getReceiver(sender);
-
-        if (receiver == null)
-            throw new RuntimeException("ERROR: send() called on wrong link");
-
-        Vector receiverSockets = receiver.getSockets();
-
+    // send a packet to the sockets of receiver which joined the group of the
+    // packet (looked up by the ForwardingTable). all sockets share the same
+    // payload
+    //
+    // NOTE: send() is called concurrently by all sending nodes. only the error
+    // decision and the flashing state need the lock of this link - the sockets
+    // themselves synchronize the delivery
+    public int send(Payload p, Client receiver, EmuSocket[] targets) {
         if (!this.isNextPacketDeliverable()) {
             return Link.PACKET_LOST;
         }
 
-        for (Iterator iter = receiverSockets.iterator(); iter.hasNext();) {
-            EmuSocket curSocket = (EmuSocket) iter.next();
-
-            if (curSocket.getGroups().contains(p.getAddress())) {
-                // send the packet to the socket
-                curSocket.receivePacket(p, this.getDelay());
-                sentSomething = true;
-            }
+        for (int i = 0; i < targets.length; i++) {
+            // send the packet to the socket
+            targets[i].receivePacket(p, this.getDelay());
         }
 
-        if (sentSomething) {
+        if (targets.length > 0) {
             if (Options.flashTime != 0) {
-                // adjust color of arrow (-> flashing)
-                if (receiver == this.start) {
-                    // change the color of the link
-                    if (flashThreadStart == null || !flashThreadStart.isAlive()) {
-                        flashThreadStart = new FlashLinkThread(true);
-                        flashThreadStart.start();
-                    } else {
-                        flashThreadStart.reset();
-                    }
-                } else {
-                    // change the color of the link
-                    if (flashThreadEnd == null || !flashThreadEnd.isAlive()) {
-                        flashThreadEnd = new FlashLinkThread(false);
-                        flashThreadEnd.start();
-                    } else {
-                        flashThreadEnd.reset();
-                    }
-                }
+                flash(receiver);
             }
 
             return Link.PACKET_SENT;
@@ -189,8 +149,35 @@ public class Link {
         }
     }
 
-    // test if the next packet is deliverable according to error settings
-    public boolean isNextPacketDeliverable() {
+    // adjust color of the arrow pointing to the receiver (-> flashing). the
+    // graph is only redrawn when the arrow starts flashing, the DrawPanel
+    // switches the color back when the time is over
+    private synchronized void flash(Client receiver) {
+        long now = System.currentTimeMillis();
+        long until;
+
+        if (receiver == this.start) {
+            until = flashingStartUntil;
+            flashingStartUntil = now + Options.flashTime;
+        } else {
+            until = flashingEndUntil;
+            flashingEndUntil = now + Options.flashTime;
+        }
+
+        if (until <= now) {
+            Emulator.getRef().redrawGraph();
+        }
+    }
+
+    // until when the arrow pointing to the start (end) of the link flashes
+    public long getFlashingUntil(boolean startArrow) {
+        return startArrow ? flashingStartUntil : flashingEndUntil;
+    }
+
+    // test if the next packet is deliverable according to error settings.
+    // synchronized because the counters and the position in the error pattern
+    // are shared by all nodes sending over this link
+    public synchronized boolean isNextPacketDeliverable() {
         switch (errorType) {
         case NO_ERROR:
             succCount++;
@@ -322,11 +309,11 @@ public class Link {
 
     // set the endpoint of an open link
     public void setEndpoint(int x, int y) {
-        if ((end != null) || (openEnd == null))
+        if (end != null)
             throw new RuntimeException("ERROR: Impossible to set coordinates of a closed link");
 
-        openEnd.x = x;
-        openEnd.y = y;
+        openX = x;
+        openY = y;
     }
 
     // set the endpoint of a closed link
@@ -335,8 +322,6 @@ public class Link {
             throw new RuntimeException("ERROR: Link is already closed");
 
         end = dest;
-
-        openEnd = null;
     }
 
     // returns true if this links connects c1 and c2
@@ -353,15 +338,15 @@ public class Link {
         if (end == null)
             throw new RuntimeException("ERROR: intersect() not allowed on open links");
 
-        Point startPoint = calcCoord(true);
-        Point endPoint = calcCoord(false);
+        int[] startPoint = calcCoord(true);
+        int[] endPoint = calcCoord(false);
 
-        if (Math.pow(x - startPoint.getX(), 2) + Math.pow(y - startPoint.getY(), 2) < Math.pow(CATCH_RADIUS, 2)) {
+        if (Math.pow(x - startPoint[0], 2) + Math.pow(y - startPoint[1], 2) < Math.pow(CATCH_RADIUS, 2)) {
             // start point hit
             return true;
         }
 
-        if (Math.pow(x - endPoint.getX(), 2) + Math.pow(y - endPoint.getY(), 2) < Math.pow(CATCH_RADIUS, 2)) {
+        if (Math.pow(x - endPoint[0], 2) + Math.pow(y - endPoint[1], 2) < Math.pow(CATCH_RADIUS, 2)) {
             // end point hit
             return true;
         }
@@ -416,29 +401,33 @@ public class Link {
 
         if (c == start) {
             // exchange start and endpoint
-            openEnd = calcCoord(true);
+            int[] point = calcCoord(true);
+            openX = point[0];
+            openY = point[1];
             start = end;
             end = null;
 
         } else if (c == end) {
-            openEnd = calcCoord(false);
+            int[] point = calcCoord(false);
+            openX = point[0];
+            openY = point[1];
             end = null;
         } else
             throw new RuntimeException("ERROR: setOpen needs start or endpoint as parameter");
     }
 
-    // calculate the coordinates of the startpoint (endpoint) if parameter is
-    // true (false) of the arrow when drawing this link
-    private Point calcCoord(boolean startpoint) {
+    // calculate the coordinates {x, y} of the startpoint (endpoint) if 
+    // parameter is true (false) of the arrow when drawing this link
+    private int[] calcCoord(boolean startpoint) {
         if (!startpoint && (end == null))
-            return openEnd;
+            return new int[] { openX, openY };
 
         int deltaX;
         int deltaY;
 
         if (end == null) {
-            deltaX = start.getX() - openEnd.x;
-            deltaY = start.getY() - openEnd.y;
+            deltaX = start.getX() - openX;
+            deltaY = start.getY() - openY;
         } else {
             deltaX = start.getX() - end.getX();
             deltaY = start.getY() - end.getY();
@@ -452,146 +441,9 @@ public class Link {
         int offsetY = (int) Math.round(deltaY * prop);
 
         if (startpoint) {
-            return new Point(start.getX() - offsetX, start.getY() - offsetY);
+            return new int[] { start.getX() - offsetX, start.getY() - offsetY };
         } else
-            return new Point(end.getX() + offsetX, end.getY() + offsetY);
-    }
-
-    // draw the link
-    public void draw(Graphics g1D) {
-        // don't draw an open link if the end is inside of its startpoint
-        if ((end == null) && (openEnd.distance(start.getX(), start.getY()) < Client.RADIUS))
-            return;
-
-        // activate anti aliasing
-        Graphics2D g = (Graphics2D) g1D;
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-        // set correct color
-        if ((end != null) && start.isRunning() && end.isRunning())
-            g.setColor(RUNNING_LINK_COLOR);
-        else
-            g.setColor(SLEEPING_LINK_COLOR);
-
-        // calculate start- & endpoint and link length
-        Point s = new Point();
-        Point e = new Point();
-        double dist;
-
-        s.x = start.getX();
-        s.y = start.getY();
-
-        if (end == null) {
-            e.x = openEnd.x;
-            e.y = openEnd.y;
-            dist = s.distance(e) + Client.RADIUS;
-        } else {
-            e.x = end.getX();
-            e.y = end.getY();
-            dist = s.distance(e);
-        }
-
-        int fact = 1; //  fact = +/- 1 (needed if s not on the left of e)
-
-        if (s.x > e.x)
-            fact = -1;
-
-        // rotate g so that we can draw horizontally
-        double theta = Math.atan(((float) (e.y - s.y)) / (e.x - s.x));
-        g.rotate(theta, s.x, s.y);
-
-        // draw the link
-        Stroke old = g.getStroke();
-
-        if (getErrorType() == NO_ERROR) {
-            g.setStroke(normal);
-        } else {
-            g.setStroke(dashed);
-        }
-        if (this.isBidirectional) {
-            g.drawLine(s.x + fact * (Client.RADIUS + ARROW_LENGTH), s.y, (s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH)), s.y);
-        } else {
-            g.drawLine(s.x + fact * Client.RADIUS, s.y, (s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH)), s.y);
-        }
-        g.setStroke(old);
-
-        // draw the arrows
-        //
-        //  /| |\ ^ W = ARROW_WIDTH
-        // < ------ > W L = ARROW_LENGTH
-        //  \| |/ v
-        //
-        // <L>
-        // <-- dist -->
-
-        int arrowX[] = new int[3];
-        int arrowY[] = new int[3];
-
-        arrowX[0] = s.x + fact * (Client.RADIUS);
-        arrowX[1] = s.x + fact * (Client.RADIUS + ARROW_LENGTH);
-        arrowX[2] = s.x + fact * (Client.RADIUS + ARROW_LENGTH);
-
-        arrowY[0] = s.y;
-        arrowY[1] = s.y - ARROW_WIDTH / 2;
-        arrowY[2] = s.y + ARROW_WIDTH / 2;
-
-        if (this.isBidirectional) {
-            if (flashingStart) {
-                g.setColor(USED_LINK_COLOR);
-                g.fillPolygon(arrowX, arrowY, 3);
-                g.setColor(RUNNING_LINK_COLOR);
-            } else {
-                g.fillPolygon(arrowX, arrowY, 3);
-            }
-        } else {
-
-        }
-
-        arrowX[0] = s.x + fact * ((int) dist - Client.RADIUS);
-        arrowX[1] = s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH);
-        arrowX[2] = s.x + fact * ((int) dist - Client.RADIUS - ARROW_LENGTH);
-
-        if (flashingEnd) {
-            g.setColor(USED_LINK_COLOR);
-            g.fillPolygon(arrowX, arrowY, 3);
-            g.setColor(RUNNING_LINK_COLOR);
-        } else {
-            g.fillPolygon(arrowX, arrowY, 3);
-        }
-
-        // write delay & packet info to the link
-        if (end != null) {
-            // write delay above the link
-            String delayText = Integer.toString(getDelay()) + " ms";
-
-            if (delayText.equals("0 ms")) {
-                delayText = "no delay";
-            }
-
-            int delayWidth = g.getFontMetrics().stringWidth(delayText);
-
-            // draw the text only if there is enough space
-            if (delayWidth < dist - 2 * Client.RADIUS)
-                g.drawString(delayText, (int) (s.x + fact * dist / 2 - delayWidth / 2), s.y - 8);
-
-            // write sent/lost packets below the link
-            String packetText = "sent: " + Integer.toString(succCount) + " lost: " + Integer.toString(lostCount);
-
-            String packetTextShort = Integer.toString(succCount) + " / " + Integer.toString(lostCount);
-
-            int packetWidth = g.getFontMetrics().stringWidth(packetText);
-            int packetWidthShort = g.getFontMetrics().stringWidth(packetTextShort);
-
-            // draw the text only if there is enough space
-            if (packetWidth < dist - 2 * Client.RADIUS)
-                g.drawString(packetText, (int) (s.x + fact * dist / 2 - packetWidth / 2), s.y + 15);
-            else if (packetWidthShort < dist - 2 * Client.RADIUS)
-                g.drawString(packetTextShort, (int) (s.x + fact * dist / 2 - packetWidthShort / 2), s.y + 15);
-        }
-
-        // rotate g back
-        g.rotate(-theta, s.x, s.y);
-
+            return new int[] { end.getX() + offsetX, end.getY() + offsetY };
     }
 
     public String toString() {
@@ -602,50 +454,6 @@ public class Link {
         }
     }
 
-    // a private thread which changes the color of the arrows when required
-    private class FlashLinkThread extends Thread {
-        private long stopAt;
-
-        boolean startArrow;
-
-        public FlashLinkThread(boolean start) {
-            super();
-            startArrow = start;
-        }
-
-        public void run() {
-            // change the color of the link
-            if (startArrow)
-                flashingStart = true;
-            else
-                flashingEnd = true;
-
-            Emulator.getRef().redrawGraph();
-
-            stopAt = System.currentTimeMillis() + Options.flashTime;
-
-            while (System.currentTimeMillis() < stopAt) {
-                try {
-                    sleep(stopAt - System.currentTimeMillis());
-                } catch (InterruptedException e) {
-                    // d'oh...
-                }
-            }
-
-            // switch back the color
-            if (startArrow)
-                flashingStart = false;
-            else
-                flashingEnd = false;
-
-            Emulator.getRef().redrawGraph();
-        }
-
-        public void reset() {
-            stopAt = System.currentTimeMillis() + Options.flashTime;
-        }
-    }
-
     // all those one-liners to get and set private fields...
     public Client getStart() {
         return start;
@@ -655,6 +463,24 @@ public class Link {
         return end;
     }
 
+    // the end of an open link
+    public int getOpenX() {
+        return openX;
+    }
+
+    public int getOpenY() {
+        return openY;
+    }
+
+    // the number of packets sent and lost over this link
+    public int getSuccCount() {
+        return succCount;
+    }
+
+    public int getLostCount() {
+        return lostCount;
+    }
+
     public void setStart(Client start) {
         this.start = start;
     }
@@ -672,5 +498,6 @@ public class Link {
 
     public void setBidirectional(boolean bi) {
         this.isBidirectional = bi;
+        Emulator.getRef().getForwardingTable().invalidate();
     }
 }
\ No newline at end of file
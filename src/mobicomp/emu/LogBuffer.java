@@ -0,0 +1,243 @@
+package mobicomp.emu;
+
+/*
+ * LogBuffer
+ *
+ * the output shown by the OutputWindow. the lines are kept UTF-8 encoded in
+ * rings of bytes with a fixed size, new lines overwrite the oldest ones of
+ * their ring. every node has a ring of its own (the view of its tab), and
+ * the "All" view is one more ring which gets the lines of all nodes.
+ *
+ * so a node's tab always keeps the newest lines of the node, no matter how
+ * much the other nodes write - they only push its lines out of "All". the
+ * memory needed is the size of the "All" ring plus the size of a node ring
+ * for each node.
+ *
+ * the lines of a view are numbered in the order they were added, starting 
+ * at 0. the text of a line is only decoded when it is drawn.
+ *
+ * the buffer isn't thread safe - the OutputWindow only uses it on the event
+ * dispatch thread
+ *
+ */
+
+import java.io.UnsupportedEncodingException;
+
+public class LogBuffer
+{
+	// the view of all lines
+	private View all;
+
+	// the view whose line is the newest one in "All", and whether the line 
+	// still waits for its line break (more text of the same node is 
+	// appended to it)
+	private View lastView = null;
+	private boolean lastOpen = false;
+
+	// constructor: "All" keeps capacity bytes
+	public LogBuffer(int capacity)
+	{
+		all = new View(capacity);
+	}
+
+	// the view of the lines of all nodes
+	public View getAll()
+	{
+		return all;
+	}
+
+	// a new (empty) view for the lines of a node, holding capacity bytes
+	public View newView(int capacity)
+	{
+		return new View(capacity);
+	}
+
+	// add the text written by the node of view to its view and to "All". 
+	// color is kept with the lines
+	public void append(View view, int color, String text, boolean error)
+	{
+		int pos = 0;
+		while (pos < text.length())
+		{
+			int end = text.indexOf('\n', pos);
+			boolean open = (end < 0);
+			if (open)
+				end = text.length();
+			byte[] bytes = encode(text.substring(pos, end));
+
+			// the view of the node continues its open line even if other 
+			// nodes wrote in between, "All" only if nobody did
+			view.write(bytes, color, error, view.open);
+			all.write(bytes, color, error, lastOpen && lastView == view);
+
+			view.open = open;
+			lastView = view;
+			lastOpen = open;
+			pos = end + 1;
+		}
+	}
+
+	private static byte[] encode(String text)
+	{
+		try
+		{
+			return text.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			// can't happen - every JVM supports UTF-8
+			throw new RuntimeException("ERROR: " + e);
+		}
+	}
+
+	// the lines shown by a tab of the OutputWindow: a ring of a fixed number
+	// of bytes. getDropped() and getAdded() count the lines ever removed 
+	// from the front of the view and added to its end, so a viewer can tell
+	// how the view changed
+	public static class View
+	{
+		// the bytes of the lines (without the line breaks)
+		private byte[] data;
+
+		// where the next line is written in data
+		private int writePos = 0;
+
+		// offset, length, color and error flag of the lines, line n is 
+		// found at index n % offsets.length
+		private int[] offsets;
+		private int[] lengths;
+		private byte[] colors;
+		private boolean[] errors;
+
+		// the number of the oldest line in the view and of the next line 
+		// added
+		private long first = 0;
+		private long next = 0;
+
+		// true if the newest line still waits for its line break
+		private boolean open = false;
+
+		private View(int capacity)
+		{
+			data = new byte[Math.max(capacity, 1)];
+
+			// room for the lines if they are 16 bytes long on average
+			int lineCapacity = Math.max(256, capacity / 16);
+			offsets = new int[lineCapacity];
+			lengths = new int[lineCapacity];
+			colors = new byte[lineCapacity];
+			errors = new boolean[lineCapacity];
+		}
+
+		public int size()
+		{
+			return (int) (next - first);
+		}
+
+		// the text of the line at index (0 is the oldest one)
+		public String getText(int index)
+		{
+			int s = slot(first + index);
+			try
+			{
+				return new String(data, offsets[s], lengths[s], "UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				// can't happen - every JVM supports UTF-8
+				throw new RuntimeException("ERROR: " + e);
+			}
+		}
+
+		public int getColor(int index)
+		{
+			return colors[slot(first + index)];
+		}
+
+		public boolean isError(int index)
+		{
+			return errors[slot(first + index)];
+		}
+
+		public long getDropped()
+		{
+			return first;
+		}
+
+		public long getAdded()
+		{
+			return next;
+		}
+
+		// add a piece of a line. it's appended to the newest line if 
+		// continued is true and the line has the same error flag
+		private void write(byte[] bytes, int color, boolean error, boolean continued)
+		{
+			if (continued && first < next && errors[slot(next - 1)] == error)
+				extendLine(bytes);
+			else
+				addLine(bytes, bytes.length, color, error);
+		}
+
+		private int slot(long line)
+		{
+			return (int) (line % offsets.length);
+		}
+
+		// put the first len bytes of a new line into the ring, dropping the
+		// oldest lines it overwrites. returns the number of the line
+		private long addLine(byte[] bytes, int len, int color, boolean error)
+		{
+			// a line longer than the whole ring is cut
+			int length = Math.min(len, data.length);
+
+			if (next - first == offsets.length)
+				first++;
+
+			int pos = writePos;
+			if (pos + length > data.length)
+			{
+				// no room before the end of data, start over at 0. the lines
+				// behind writePos are the oldest ones and get lost first
+				while (first < next && offsets[slot(first)] >= writePos)
+					first++;
+				pos = 0;
+			}
+			while (first < next && overlaps(first, pos, length))
+				first++;
+
+			System.arraycopy(bytes, 0, data, pos, length);
+			int s = slot(next);
+			offsets[s] = pos;
+			lengths[s] = length;
+			colors[s] = (byte) color;
+			errors[s] = error;
+			writePos = pos + length;
+			return next++;
+		}
+
+		// append bytes to the newest line. the line is written again as a 
+		// whole, so it may move to the start of data
+		private void extendLine(byte[] bytes)
+		{
+			long line = next - 1;
+			int s = slot(line);
+			byte[] text = new byte[lengths[s] + bytes.length];
+			System.arraycopy(data, offsets[s], text, 0, lengths[s]);
+			System.arraycopy(bytes, 0, text, lengths[s], bytes.length);
+
+			// take the line out and add it again, it keeps its number
+			next = line;
+			writePos = offsets[s];
+			addLine(text, text.length, colors[s], errors[s]);
+		}
+
+		// true if line uses some of the len bytes at pos (an empty line 
+		// counts as one byte, so it's dropped in order with its neighbours)
+		private boolean overlaps(long line, int pos, int len)
+		{
+			int s = slot(line);
+			return offsets[s] < pos + len && offsets[s] + Math.max(lengths[s], 1) > pos;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package mobicomp.emu;
+
+/*
+ * NodeContext
+ *
+ * the node a thread belongs to. the ClientThread sets it before calling the
+ * main() method of a client, every thread started by the client inherits it
+ * (InheritableThreadLocal). this works for virtual threads as well, which all
+ * share one ThreadGroup and can't be told apart by Emulator.threadGroups.
+ *
+ * nodes running on virtual threads can't count their threads with
+ * ThreadGroup.activeCount(). the main thread of such a node is counted from
+ * its start, any other virtual thread from the moment it blocks in the 
+ * emulator for the first time until it terminates (see 
+ * Emulator.countClientThreads()). normal threads they start are found in
+ * the ThreadGroup shared by all virtual threads
+ *
+ */
+
+public class NodeContext
+{
+	// the context of the current thread (null for threads of the emulator)
+	private static InheritableThreadLocal current = new InheritableThreadLocal();
+
+	// the name of the node
+	private String nodename;
+
+	// true if the node runs on virtual threads
+	private boolean virtual;
+	
+	// false after the node was removed. its threads may still be running,
+	// but they don't belong to a node any more
+	private volatile boolean valid = true;
+
+	// constructor
+	public NodeContext(String nodename, boolean virtual)
+	{
+		this.nodename = nodename;
+		this.virtual = virtual;
+	}
+
+	// the context of the current thread (null if it doesn't belong to a node)
+	public static NodeContext get()
+	{
+		return (NodeContext) current.get();
+	}
+
+	// make the current thread (and all threads it starts from now on) belong
+	// to the node of context
+	public static void set(NodeContext context)
+	{
+		current.set(context);
+	}
+
+	public String getNodename()
+	{
+		return nodename;
+	}
+
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+	
+	public boolean isValid()
+	{
+		return valid;
+	}
+	
+	// the node was removed from the emulation
+	public void invalidate()
+	{
+		valid = false;
+	}
+}
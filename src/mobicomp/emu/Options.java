@@ -19,7 +19,60 @@ public class Options
 	public static boolean addNodePrefix = true;
 	public static int charBufferSize = 25*80;
 	
+	// bytes of output kept for the "All" tab (see LogBuffer). the tab of 
+	// each node keeps charBufferSize bytes of its own output on top of it
+	public static int logBufferSize = 1024*1024;
+	
 	// misc settings
 	public static int packetBufferSize = 20;
+	
+	// what a socket does with a packet arriving while its buffer is full:
+	// throw the new packet away, throw the oldest waiting packet away, throw
+	// packets away at random before the buffer is full (like RED) or let 
+	// the sender wait until there's room again
+	public static final int OVERFLOW_DROP_TAIL = 0;
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+	public static final int OVERFLOW_DROP_RANDOM = 2;
+	public static final int OVERFLOW_BLOCK = 3;
+	public static int overflowPolicy = OVERFLOW_DROP_TAIL;
+	
+	// default SO_RCVBUF of a socket: the bytes its queue may hold in addition
+	// to the packetBufferSize limit (0: no byte limit)
+	public static int receiveBufferSize = 0;
+	
+	// the bytes all sockets together may hold (0: no limit). when they are 
+	// used up, the socket holding the most bytes loses its oldest packet
+	public static long maxQueuedBytes = 0;
 	public static int flashTime = 800;
+	
+	// run the emulation in virtual time (see class Clock)
+	public static boolean virtualTime = false;
+	
+	// keep the data of queued packets outside of the java heap (see 
+	// PacketStore)
+	public static boolean offHeapPackets = false;
+	
+	// number of threads running the packet handlers of all nodes (see 
+	// AsyncSocket)
+	public static int callbackThreads = 4;
+	
+	// deliver a packet only to the sockets bound to its destination port 
+	// (like UDP). if false, every socket in the group gets it, whatever its
+	// port (the original behaviour of the emulator)
+	public static boolean portDemux = false;
+	
+	// run the clients on virtual threads (needs java 21, the clients run on 
+	// normal threads otherwise). a virtual thread started by such a client 
+	// only counts for the virtual time once it has blocked in the emulator
+	public static boolean virtualThreads = false;
+	
+	// let DatagramChannel.open() and Selector.open() return emulated 
+	// channels and selectors (see EmuSelectorProvider). the provider is 
+	// installed for the whole JVM: TCP channels and pipes are taken from the
+	// default provider of the platform, which java 9 and later only hand out
+	// if the JVM runs with --add-exports java.base/sun.nio.ch=ALL-UNNAMED
+	public static boolean nioChannels = false;
+	
+	// run without any window (the graph is read from mobicomp.emu.graphFile)
+	public static boolean headless = false;
 }
\ No newline at end of file
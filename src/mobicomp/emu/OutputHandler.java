@@ -6,10 +6,27 @@ package mobicomp.emu;
  * this class controls the class OutputWindow which replaces the console by a
  * tabbed pane
  *
+ * the output of the clients is collected in a line buffer per node and 
+ * stream. whole lines (decoded as UTF-8) are queued and printed in batches 
+ * by a drain thread, so a client printing a lot doesn't hold up the 
+ * emulator. a line without its end is printed once it stopped growing for
+ * FLUSH_INTERVAL ms or got MAX_LINE bytes long.
+ *
+ * each node may have MAX_QUEUED bytes per stream waiting for the drain 
+ * thread. output beyond that is thrown away and replaced by a 
+ * "[n bytes dropped]" line as soon as there is room again, so a client 
+ * printing faster than the output can be shown doesn't use up the memory
+ *
  */
 
 import java.io.PrintStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class OutputHandler
 {
@@ -18,16 +35,55 @@ public class OutputHandler
 	private PrintStream myOutStream;
 	private PrintStream myErrStream;
 	
+	private myOutputStream myOut;
+	private myOutputStream myErr;
+	
 	private OutputWindow outwnd;
 	
+	// ms between two batches of output
+	private static final int FLUSH_INTERVAL = 50;
+	
+	// longest line (in bytes) kept back until its end is written
+	private static final int MAX_LINE = 4096;
+	
+	// bytes of a node and stream which may wait for the drain thread
+	private static final int MAX_QUEUED = 256 * 1024;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// the text waiting to be printed, in the order it was written
+	private ConcurrentLinkedQueue chunks = new ConcurrentLinkedQueue();
+	
+	// held while printing, so the batches stay in order
+	private Object printLock = new Object();
+	
+	// the node and stream whose line was printed last to the console, and
+	// whether that line is still open (guarded by printLock)
+	private String consoleName = null;
+	private boolean consoleError = false;
+	private boolean consoleLineOpen = false;
+	
 	public OutputHandler()
 	{
 		defOutStream = System.out;
 		defErrStream = System.err;
-		myOutStream = new PrintStream(new myOutputStream(false), true);
-		myErrStream = new PrintStream(new myOutputStream(true), true);
+		myOut = new myOutputStream(false);
+		myErr = new myOutputStream(true);
 		
-		outwnd = new OutputWindow();
+		try
+		{
+			myOutStream = new PrintStream(myOut, true, "UTF-8");
+			myErrStream = new PrintStream(myErr, true, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			// can't happen - every JVM supports UTF-8
+			throw new RuntimeException("ERROR: " + e);
+		}
+		
+		// without GUI, everything goes to the console
+		if (!Options.headless)
+			outwnd = new OutputWindow();
 	}
 	
 	// start handling the output by exchanging the System.out stream
@@ -35,45 +91,155 @@ public class OutputHandler
 	{
 		System.setOut(myOutStream);
 		System.setErr(myErrStream);
+		
+		new DrainThread().start();
+		
+		// print whatever is left when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread("OutputFlushThread")
+		{
+			public void run()
+			{
+				drain(true);
+			}
+		});
 	}
 	
 	// hide output window
 	public void hideWindow()
 	{
-		outwnd.setVisible(false);
+		if (outwnd != null)
+			outwnd.setVisible(false);
 	}
 	
 	// show output window
 	public void showWindow()
 	{
-		outwnd.setVisible(true);
+		if (outwnd != null)
+			outwnd.setVisible(true);
 	}
 	
 	// add a client
 	public void addClient(String name)
 	{
-		outwnd.addTab(name);
+		if (outwnd != null)
+			outwnd.addTab(name);
 	}
 	
 	// remove a client
 	public void removeClient(String name)
 	{
-		outwnd.removeTab(name);
+		// print the rest of its last lines and forget its buffers
+		myOut.remove(name);
+		myErr.remove(name);
+		
+		if (outwnd != null)
+			outwnd.removeTab(name);
 	}
 			
+	// messages of the emulator are queued like the output of the clients,
+	// so they show up in the right order
 	public void sendEmuMsg(String msg, boolean error)
 	{
-		if (Options.printToConsole)
+		chunks.add(new Chunk(null, "Emulator", msg, error, true, 0));
+	}
+	
+	// print all queued output. all = true: the lines without their end, too
+	private void drain(boolean all)
+	{
+		synchronized (printLock)
 		{
-			if (Options.addNodePrefix)
-				defOutStream.print("Emulator: " + msg);
-			else
-				defOutStream.print(msg);
+			myOut.checkStale(all);
+			myErr.checkStale(all);
+			
+			ArrayList batch = new ArrayList();
+			Chunk chunk;
+			
+			while ((chunk = (Chunk) chunks.poll()) != null)
+			{
+				batch.add(chunk);
+				
+				// the node may queue more output now
+				if (chunk.buffer != null)
+					chunk.buffer.dequeued(chunk.bytes);
+			}
+			
+			if (batch.isEmpty())
+				return;
+			
+			if (Options.printToConsole)
+			{
+				StringBuffer text = new StringBuffer();
+				
+				for (int i = 0; i < batch.size(); i++)
+					appendToConsole(text, (Chunk) batch.get(i));
+				
+				defOutStream.print(text);
+				defOutStream.flush();
+				return;
+			}
+			
+			// one write for each run of chunks of the same node and stream
+			int i = 0;
+			
+			while (i < batch.size())
+			{
+				Chunk first = (Chunk) batch.get(i);
+				StringBuffer text = new StringBuffer(first.text);
+				
+				for (i++; i < batch.size(); i++)
+				{
+					Chunk next = (Chunk) batch.get(i);
+					
+					if (!next.name.equals(first.name) || next.error != first.error)
+						break;
+					
+					text.append(next.text);
+				}
+				
+				outwnd.write(defOutStream, first.name, text.toString(), first.error);
+			}
 		}
-		else
+	}
+	
+	// add the text of chunk to text, each line with the name of the node in
+	// front (if Options.addNodePrefix is set). the caller holds printLock
+	private void appendToConsole(StringBuffer text, Chunk chunk)
+	{
+		if (!Options.addNodePrefix || chunk.text.length() == 0)
 		{
-			outwnd.write(defOutStream, "Emulator", msg, error);
+			text.append(chunk.text);
+			return;
+		}
+		
+		// the rest of a line is only appended if nobody else printed since
+		// its beginning. otherwise, the open line is ended and the rest gets
+		// a prefix of its own
+		boolean continued = !chunk.lineStart && consoleLineOpen &&
+			chunk.name.equals(consoleName) && chunk.error == consoleError;
+		
+		if (consoleLineOpen && !continued)
+			text.append('\n');
+		
+		boolean lineStart = !continued;
+		int pos = 0;
+		
+		while (pos < chunk.text.length())
+		{
+			int end = chunk.text.indexOf('\n', pos);
+			end = (end < 0) ? chunk.text.length() : end + 1;
+			
+			// attach prefix "name: " to each new line
+			if (lineStart)
+				text.append(chunk.name).append(": ");
+			
+			text.append(chunk.text, pos, end);
+			lineStart = true;
+			pos = end;
 		}
+		
+		consoleName = chunk.name;
+		consoleError = chunk.error;
+		consoleLineOpen = (chunk.text.charAt(chunk.text.length() - 1) != '\n');
 	}
 	
 	// private class
@@ -82,7 +248,8 @@ public class OutputHandler
 		// true if it catches output to System.err, false if System.out
 		private boolean error;
 		
-		private boolean newline = true;
+		// the lines each node is writing (name -> LineBuffer)
+		private ConcurrentHashMap buffers = new ConcurrentHashMap();
 		
 		public myOutputStream(boolean error)
 		{
@@ -90,37 +257,241 @@ public class OutputHandler
 		}
 		
 		public void write(int b)
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		public void write(byte[] b, int off, int len)
 		{
 			String threadName = Emulator.getRef().mapThreadToNodename(Thread.currentThread());
 			if (threadName == null)
 				threadName = "Emulator";
 			
-			if (Options.printToConsole)
+			LineBuffer buffer = (LineBuffer) buffers.get(threadName);
+			
+			if (buffer == null)
 			{
-				if (Options.addNodePrefix)
+				buffer = new LineBuffer(threadName, error);
+				LineBuffer other = (LineBuffer) buffers.putIfAbsent(threadName, buffer);
+				
+				if (other != null)
+					buffer = other;
+			}
+			
+			buffer.append(b, off, len);
+		}
+		
+		// pass on the lines which didn't grow since the last call (all 
+		// lines if all is true)
+		public void checkStale(boolean all)
+		{
+			for (Iterator iter=buffers.values().iterator(); iter.hasNext(); )
+				((LineBuffer) iter.next()).checkStale(all);
+		}
+		
+		// the node is gone: queue what's left of its line and drop its buffer
+		public void remove(String name)
+		{
+			LineBuffer buffer = (LineBuffer) buffers.remove(name);
+			
+			if (buffer != null)
+				buffer.checkStale(true);
+		}
+	}
+	
+	// the output of one node to one stream. complete lines are passed on to
+	// the drain thread, the rest waits for the end of its line
+	private class LineBuffer
+	{
+		private String name;
+		private boolean error;
+		
+		private byte[] data = new byte[256];
+		private int length = 0;
+		
+		// true if the next byte starts a new line
+		private boolean lineStart = true;
+		
+		// set by the drain thread, cleared by append(). a line that doesn't
+		// grow for a whole FLUSH_INTERVAL is printed without its end
+		private boolean stale = false;
+		
+		// bytes in chunks not taken by the drain thread yet, and bytes 
+		// thrown away since the last chunk because there were too many
+		private int queued = 0;
+		private long dropped = 0;
+		
+		public LineBuffer(String name, boolean error)
+		{
+			this.name = name;
+			this.error = error;
+		}
+		
+		public synchronized void append(byte[] b, int off, int len)
+		{
+			stale = false;
+			
+			// data never holds more than MAX_LINE bytes
+			while (len > 0)
+			{
+				int n = Math.min(len, MAX_LINE - length);
+				
+				if (length + n > data.length)
 				{
-					// print output with name prefix to the console
-					if (newline)
-					{
-						newline = false;
-						
-						// attach prefix "name: " to each new line
-						defOutStream.print(threadName + ": ");
-					}
-					
-					if (b == '\n')
+					byte[] bigger = new byte[Math.min(Math.max(data.length * 2, length + n), MAX_LINE)];
+					System.arraycopy(data, 0, bigger, 0, length);
+					data = bigger;
+				}
+				
+				System.arraycopy(b, off, data, length, n);
+				length += n;
+				off += n;
+				len -= n;
+				
+				// pass on all complete lines at once
+				for (int i = length - 1; i >= length - n; i--)
+				{
+					if (data[i] == '\n')
 					{
-						newline = true;
+						take(i + 1);
+						break;
 					}
 				}
 				
-				defOutStream.write(b);
+				// a line that long is passed on without its end
+				if (length == MAX_LINE)
+					takeChars();
+			}
+		}
+		
+		// called by the drain thread every FLUSH_INTERVAL
+		public synchronized void checkStale(boolean all)
+		{
+			if (length == 0)
+				return;
+			
+			if (!stale && !all)
+			{
+				stale = true;
+				return;
+			}
+			
+			takeChars();
+		}
+		
+		// the drain thread took bytes of this buffer out of the queue
+		public synchronized void dequeued(int bytes)
+		{
+			queued -= bytes;
+			
+			// tell about the lost output even if the node is quiet now
+			if (dropped > 0 && queued < MAX_QUEUED)
+				queueDropped();
+		}
+		
+		// queue all complete characters. the caller holds the lock
+		private void takeChars()
+		{
+			// don't cut a UTF-8 sequence: skip back over continuation bytes
+			// to the start of the last character and keep it if incomplete
+			int end = length;
+			int start = length - 1;
+			
+			while (start > 0 && start > length - 4 && (data[start] & 0xc0) == 0x80)
+				start--;
+			
+			int lead = data[start] & 0xff;
+			int size = (lead >= 0xf0) ? 4 : (lead >= 0xe0) ? 3 : (lead >= 0xc0) ? 2 : 1;
+			
+			if (length - start < size)
+				end = start;
+			
+			if (end > 0)
+				take(end);
+		}
+		
+		// queue the first n bytes for the drain thread, or throw them away if
+		// too many are queued already. the caller holds the lock
+		private void take(int n)
+		{
+			if (queued + n > MAX_QUEUED)
+			{
+				dropped += n;
 			}
 			else
 			{
-				// print output to the tab window
-				outwnd.write(defOutStream, threadName, Character.toString((char) b), error);
+				if (dropped > 0)
+					queueDropped();
+				
+				chunks.add(new Chunk(this, name, new String(data, 0, n, UTF8), error, lineStart, n));
+				queued += n;
+			}
+			
+			lineStart = (data[n - 1] == '\n');
+			System.arraycopy(data, n, data, 0, length - n);
+			length -= n;
+		}
+		
+		// queue a line telling how many bytes were thrown away. the caller 
+		// holds the lock
+		private void queueDropped()
+		{
+			chunks.add(new Chunk(null, name, "[" + dropped + " bytes dropped]\n", error, true, 0));
+			dropped = 0;
+		}
+	}
+	
+	// some text of a node waiting to be printed
+	private static class Chunk
+	{
+		// the buffer the text came from and its length in bytes (null and 0
+		// if it doesn't count for the MAX_QUEUED limit)
+		public LineBuffer buffer;
+		public int bytes;
+		
+		public String name;
+		public String text;
+		public boolean error;
+		
+		// true if text starts at the beginning of a line
+		public boolean lineStart;
+		
+		public Chunk(LineBuffer buffer, String name, String text, boolean error, 
+			boolean lineStart, int bytes)
+		{
+			this.buffer = buffer;
+			this.name = name;
+			this.text = text;
+			this.error = error;
+			this.lineStart = lineStart;
+			this.bytes = bytes;
+		}
+	}
+	
+	// prints the queued output every FLUSH_INTERVAL ms
+	private class DrainThread extends Thread
+	{
+		public DrainThread()
+		{
+			super("OutputThread");
+			setDaemon(true);
+		}
+		
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					Thread.sleep(FLUSH_INTERVAL);
+				}
+				catch (InterruptedException e)
+				{
+					// do nothing
+				}
+				
+				drain(false);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
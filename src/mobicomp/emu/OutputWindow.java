@@ -5,18 +5,27 @@ package mobicomp.emu;
  * 
  * this window replaces the default console. it offers a tab for each running
  * client and a special "All" tab where the output of all clients is accumulated
+ *
+ * the output is kept in a LogBuffer: charBufferSize bytes for the tab of
+ * each client and logBufferSize bytes for the "All" tab. the tabs only 
+ * select which lines are shown. a single JList draws the lines currently 
+ * visible, so the number of Swing components doesn't grow with the number
+ * of clients
+ *
+ * write() may be called by any thread. the text is queued and added to the
+ * buffer on the event dispatch thread, at most once every FRAME_INTERVAL ms
  *  
  */
 import javax.swing.*;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.DefaultStyledDocument;
-import javax.swing.text.SimpleAttributeSet;
-import javax.swing.text.StyleConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.PrintStream;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class OutputWindow extends JFrame implements ChangeListener {
 
@@ -32,14 +41,39 @@ public class OutputWindow extends JFrame implements ChangeListener {
 
     private static Color ERROR_COLOR = new Color(255, 0, 0);
 
+    // minimum time in ms between two updates of the buffer
+    private static final int FRAME_INTERVAL = 40;
+
+    // lines longer than this (in characters) are shown in a tool tip, too
+    private static final int LINE_WIDTH = 80;
+
+    // the output waiting for the next update
+    private ConcurrentLinkedQueue pending = new ConcurrentLinkedQueue();
+
+    // true from the first write() after an update until the next update
+    private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+
+    private Timer updateTimer;
+
+    // where to complain about output for unknown tabs
+    private volatile PrintStream console;
+
+    // the output of all tabs (only used on the event dispatch thread)
+    private LogBuffer log;
+
+    // the lines of the selected tab
+    private LogModel model;
+
+    private JList list;
+
+    private JScrollPane scrollpane;
+
     public OutputWindow() {
         super("Output Window");
         // just to be sure that the color of the selected tab is gray
         UIManager.put("TabbedPane.selected", Color.GRAY);
         tabs = new JTabbedPane(JTabbedPane.BOTTOM, JTabbedPane.WRAP_TAB_LAYOUT);
         nameToTab = new HashMap();
-        // add change listener
-        tabs.addChangeListener(this);
         // fill the color-vector with some colors
         colors = new Color[NR_OF_COLORS];
         colors[0] = new Color(255, 128, 128);
@@ -54,24 +88,40 @@ public class OutputWindow extends JFrame implements ChangeListener {
         colors[9] = new Color(128, 128, 255);
         colors[10] = new Color(255, 128, 255);
         colorCounter = -1;
-        // add a tab with a JTextArea of size 25x80 characters (-> console)
-        // this is an easy way for setting up the window with the right size.
-        // the tab is removed after the pack() is called
-        JTextArea dummy = new JTextArea(null, 25, 80);
-        dummy.setFont(new Font("Courier", Font.PLAIN, 12));
-        JScrollPane scrolldummy = new JScrollPane(dummy);
-        scrolldummy.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-        tabs.addTab("blah", scrolldummy);
-        // add the tab containing output of all other tabs
+        updateTimer = new Timer(FRAME_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                update();
+            }
+        });
+        updateTimer.setRepeats(false);
+        log = new LogBuffer(Options.logBufferSize);
+        model = new LogModel();
+        // the list shows 25 lines of 80 characters (-> console). all lines
+        // have the size of the prototype, so the list only looks at the 
+        // lines it draws
+        list = new JList(model);
+        list.setFont(new Font("Courier", Font.PLAIN, 12));
+        list.setCellRenderer(new LineRenderer());
+        StringBuffer prototype = new StringBuffer();
+        for (int i = 0; i < LINE_WIDTH; i++) {
+            prototype.append('x');
+        }
+        list.setPrototypeCellValue(new Line(prototype.toString(), Color.WHITE, false));
+        list.setVisibleRowCount(25);
+        scrollpane = new JScrollPane(list);
+        scrollpane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        scrollpane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        // add the tab showing the output of all other tabs
         addTab("All");
         // add the tab for the emulator output
         addTab("Emulator");
-        this.getContentPane().add(tabs);
+        // add change listener
+        tabs.addChangeListener(this);
+        this.getContentPane().add(scrollpane, BorderLayout.CENTER);
+        this.getContentPane().add(tabs, BorderLayout.SOUTH);
         this.setResizable(false);
         this.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         this.pack();
-        // remove the tab needed for sizing the window
-        tabs.removeTabAt(0);
         stateChanged(null);
         this.setVisible(true);
     }
@@ -83,16 +133,14 @@ public class OutputWindow extends JFrame implements ChangeListener {
         TabProp tb = new TabProp();
         tb.colorIndex = colorCounter;
         colorCounter = (colorCounter + 1) % NR_OF_COLORS;
-        tb.textpane = new JColorTextPane();
-        tb.textpane.setEditable(false);
-        tb.textpane.setFont(new Font("Courier", Font.PLAIN, 12));
-        tb.scrollpane = new JScrollPane(tb.textpane);
-        tb.scrollpane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-        tb.scrollpane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        tb.lines = log.newView(Options.charBufferSize);
+        // the "All" tab shows the lines of all tabs
+        tb.view = name.equals("All") ? log.getAll() : tb.lines;
         synchronized (nameToTab) {
             nameToTab.put(name, tb);
         }
-        tabs.addTab(name, tb.scrollpane);
+        // the tab only selects the lines shown by the list
+        tabs.addTab(name, null);
         // update colors (needed if "Emulator" is selected)
         stateChanged(null);
     }
@@ -104,8 +152,11 @@ public class OutputWindow extends JFrame implements ChangeListener {
         for (int i = 1; i < tabs.getTabCount(); i++) {
             if (tabs.getTitleAt(i).equals(name)) {
                 tabs.removeTabAt(i);
-                nameToTab.remove(name);
-                return;
+                // its lines stay in the "All" tab
+                synchronized (nameToTab) {
+                    nameToTab.remove(name);
+                }
+                break;
             }
         }
         // update colors
@@ -113,33 +164,56 @@ public class OutputWindow extends JFrame implements ChangeListener {
     }
 
     public void write(PrintStream console, String tabName, String text, boolean error) {
-        TabProp tb;
-        synchronized (nameToTab) {
-            tb = (TabProp) nameToTab.get(tabName);
+        this.console = console;
+        pending.add(new Output(tabName, text, error));
+        // the first output after an update schedules the next one
+        if (updateScheduled.compareAndSet(false, true)) {
+            updateTimer.start();
         }
-        if (tb == null) {
-            console.println("no tab");
-            // there is no tab with this name...
+    }
+
+    // add all pending output to the buffer (on the event dispatch thread)
+    private void update() {
+        // output queued from now on needs another update
+        updateScheduled.set(false);
+        Output out;
+        while ((out = (Output) pending.poll()) != null) {
+            TabProp tb;
+            synchronized (nameToTab) {
+                tb = (TabProp) nameToTab.get(out.tabName);
+            }
+            if (tb == null) {
+                console.println("no tab");
+                // there is no tab with this name...
+                continue;
+            }
+            log.append(tb.lines, tb.colorIndex, out.text, out.error);
+        }
+        model.update();
+        // scroll down the current tab
+        JScrollBar sb = scrollpane.getVerticalScrollBar();
+        sb.setValue(sb.getMaximum());
+    }
+
+    // from interface ChangeListener
+
+    public void stateChanged(ChangeEvent e) {
+        if (tabs.getSelectedIndex() < 0) {
             return;
         }
-        // write the text to the specified tab
-        tb.textpane.append(text, Color.WHITE, error);
-        if (!tabName.equals("All")) {
-            // write the text to the "all" tab, too
-            ((TabProp) nameToTab.get("All")).textpane.append(text, colors[tb.colorIndex], error);
+        String selected = tabs.getTitleAt(tabs.getSelectedIndex());
+        TabProp tb;
+        synchronized (nameToTab) {
+            tb = (TabProp) nameToTab.get(selected);
         }
-        // scroll down the current tab
-        JScrollBar sb = ((TabProp) nameToTab.get(tabs.getTitleAt(tabs.getSelectedIndex()))).scrollpane.getVerticalScrollBar();
-        try {
+        if (tb != null && tb.view != model.view) {
+            // show the lines of the selected tab
+            model.setView(tb.view, selected.equals("All"));
+            list.clearSelection();
+            JScrollBar sb = scrollpane.getVerticalScrollBar();
             sb.setValue(sb.getMaximum());
-        } catch (ArrayIndexOutOfBoundsException e) {
-            // this can happen very rarely when another thread changes the
-            // maximum after sb.getMaximum(), but before sb.setValue()
         }
-    } // from interface ChangeListener
-
-    public void stateChanged(ChangeEvent e) {
-        if (tabs.getTitleAt(tabs.getSelectedIndex()).equals("All")) {
+        if (selected.equals("All")) {
             // draw colorful tabs if "All" is selected
             for (int i = 1; i < tabs.getTabCount(); i++) {
                 tabs.setBackgroundAt(i, colors[((TabProp) nameToTab.get(tabs.getTitleAt(i))).colorIndex]);
@@ -157,46 +231,147 @@ public class OutputWindow extends JFrame implements ChangeListener {
 
         public int colorIndex;
 
-        public JScrollPane scrollpane;
+        // the lines written to the tab
+        public LogBuffer.View lines;
+
+        // the lines shown by the tab
+        public LogBuffer.View view;
+    }
+
+    // some text written to a tab, waiting for the next update
+    private static class Output {
+
+        public String tabName;
+
+        public String text;
+
+        public boolean error;
 
-        public JColorTextPane textpane;
+        public Output(String tabName, String text, boolean error) {
+            this.tabName = tabName;
+            this.text = text;
+            this.error = error;
+        }
     }
 
-    // a private class that allows colored text in a JTextPane
-    private class JColorTextPane extends JTextPane {
+    // a line as drawn by the list. toString() is used when lines are copied
+    private static class Line {
+
+        public String text;
 
-        private DefaultStyledDocument doc;
+        public Color color;
 
-        private int charCounter;
+        public boolean error;
 
-        public JColorTextPane() {
-            doc = new DefaultStyledDocument();
-            charCounter = 0;
-            setDocument(doc);
-            setMargin(new Insets(0, 0, 0, 0));
+        public Line(String text, Color color, boolean error) {
+            this.text = text;
+            this.color = color;
+            this.error = error;
         }
 
-        // synchronized to prevent some problems if different threads try to write to the console at the
-        // same time
-        public synchronized void append(String text, Color color, boolean error) {
-            try {
-                SimpleAttributeSet attr = new SimpleAttributeSet();
-                StyleConstants.setBackground(attr, color);
-                if (error) {
-                    StyleConstants.setForeground(attr, ERROR_COLOR);
-                }
-                doc.insertString(doc.getLength(), text, attr);
-                // remove some old stuff if the document is getting to long
-                if (doc.getLength() > Options.charBufferSize) {
-                    doc.remove(0, doc.getLength() - Options.charBufferSize);
-                }
-            } catch (BadLocationException e) {
-                // ignore it
+        public String toString() {
+            return text;
+        }
+    }
+
+    // the lines of a view of the buffer. only the lines asked for by the
+    // list are decoded
+    private class LogModel extends AbstractListModel {
+
+        public LogBuffer.View view;
+
+        // show each line with the color of its tab
+        private boolean colored;
+
+        // the view as the list knows it
+        private int size = 0;
+
+        private long dropped = 0;
+
+        private long added = 0;
+
+        public int getSize() {
+            return size;
+        }
+
+        public Object getElementAt(int index) {
+            int colorIndex = view.getColor(index);
+            Color color = (colored && colorIndex >= 0) ? colors[colorIndex] : Color.WHITE;
+            return new Line(view.getText(index), color, view.isError(index));
+        }
+
+        public void setView(LogBuffer.View view, boolean colored) {
+            this.view = view;
+            this.colored = colored;
+            int oldSize = size;
+            size = view.size();
+            dropped = view.getDropped();
+            added = view.getAdded();
+            fireContentsChanged(this, 0, Math.max(oldSize, size));
+        }
+
+        // tell the list which lines were dropped from the front of the view
+        // and which were added since the last update
+        public void update() {
+            if (view == null) {
+                return;
+            }
+            int oldSize = size;
+            int newSize = view.size();
+            int removed = (int) Math.min(view.getDropped() - dropped, oldSize);
+            int kept = oldSize - removed;
+            size = kept;
+            dropped = view.getDropped();
+            added = view.getAdded();
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            size = newSize;
+            if (newSize > kept) {
+                fireIntervalAdded(this, kept, newSize - 1);
+            }
+            if (kept > 0) {
+                // the last old line may have got longer
+                fireContentsChanged(this, kept - 1, kept - 1);
             }
         }
+    }
+
+    // draws a line with the color of its tab
+    private static class LineRenderer extends DefaultListCellRenderer {
 
-        public synchronized void append(String text) {
-            append(text, Color.white, false);
+        public Component getListCellRendererComponent(JList list, Object value, int index, 
+                boolean isSelected, boolean cellHasFocus) {
+            Line line = (Line) value;
+            String text = expandTabs(line.text);
+            // an empty label would be drawn without height
+            super.getListCellRendererComponent(list, text.length() == 0 ? " " : text, index, 
+                    isSelected, cellHasFocus);
+            if (!isSelected) {
+                setBackground(line.color);
+                setForeground(line.error ? ERROR_COLOR : list.getForeground());
+            }
+            setToolTipText(text.length() > LINE_WIDTH ? text : null);
+            return this;
+        }
+
+        // JLabel doesn't know tab stops, they are every 8 characters
+        private static String expandTabs(String text) {
+            if (text.indexOf('\t') < 0) {
+                return text;
+            }
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\t') {
+                    do {
+                        sb.append(' ');
+                    } while (sb.length() % 8 != 0);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
         }
     }
-}
\ No newline at end of file
+}
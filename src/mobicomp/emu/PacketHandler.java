@@ -0,0 +1,22 @@
+package mobicomp.emu;
+
+/*
+ * PacketHandler
+ *
+ * gets the packets of an AsyncSocket. the handler runs on one of the shared
+ * callback threads of the emulator, never on more than one thread at a time
+ * for the same socket. it must not block (e.g. in Clock.sleep()) - in 
+ * virtual time, the clock stands still until the handler returns.
+ *
+ * NOTE: this interface is shared with the clients (see BlockerLoader)
+ *
+ */
+
+import java.net.DatagramPacket;
+
+public interface PacketHandler
+{
+	// called for every packet received by the socket. p belongs to the 
+	// handler
+	public void packetReceived(DatagramPacket p);
+}
@@ -0,0 +1,16 @@
+package mobicomp.emu;
+
+/*
+ * interface PacketListener
+ *
+ * gets notified whenever a packet is put into the queue of an EmuSocket. used
+ * by the emulated DatagramChannels to wake up their selectors
+ *
+ * NOTE: called while the socket is locked - don't call back into the socket
+ *
+ */
+
+public interface PacketListener
+{
+	public void packetArrived(EmuSocket socket);
+}
@@ -0,0 +1,165 @@
+package mobicomp.emu;
+
+/*
+ * PacketQueue
+ *
+ * the packets waiting in a socket, ordered by their arrival time. packets
+ * with the same arrival time leave the queue in the order they came in.
+ *
+ * the queue is a binary heap kept in parallel arrays (no object per packet
+ * except the payload itself), so adding and removing a packet is O(log n).
+ *
+ * NOTE: not synchronized - the socket owning the queue locks it
+ *
+ */
+
+public class PacketQueue
+{
+	// the heap: element i has the children 2i+1 and 2i+2
+	private Payload[] packets;
+	private long[] arrivalTimes;
+	private long[] seqNumbers;
+
+	private int size = 0;
+
+	// number of packets added so far (keeps the order of equal arrival times)
+	private long nextSeq = 0;
+
+	public PacketQueue()
+	{
+		this(16);
+	}
+
+	public PacketQueue(int capacity)
+	{
+		packets = new Payload[capacity];
+		arrivalTimes = new long[capacity];
+		seqNumbers = new long[capacity];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	// add a packet arriving at arrivalTime
+	public void add(Payload packet, long arrivalTime)
+	{
+		if (size == packets.length)
+			grow();
+
+		// sift up
+		long seq = nextSeq++;
+		int pos = size++;
+
+		while (pos > 0)
+		{
+			int parent = (pos - 1) >>> 1;
+
+			if (!before(arrivalTime, seq, parent))
+				break;
+
+			move(parent, pos);
+			pos = parent;
+		}
+
+		set(pos, packet, arrivalTime, seq);
+	}
+
+	// the first packet (null if the queue is empty)
+	public Payload peek()
+	{
+		return (size == 0) ? null : packets[0];
+	}
+
+	// remove and return the first packet (null if the queue is empty)
+	public Payload poll()
+	{
+		if (size == 0)
+			return null;
+
+		Payload first = packets[0];
+
+		// take the last element and sift it down from the root
+		size--;
+
+		Payload packet = packets[size];
+		long arrivalTime = arrivalTimes[size];
+		long seq = seqNumbers[size];
+		packets[size] = null;
+
+		if (size > 0)
+		{
+			int pos = 0;
+
+			while (true)
+			{
+				int child = 2 * pos + 1;
+
+				if (child >= size)
+					break;
+
+				if ((child + 1 < size) &&
+					before(arrivalTimes[child + 1], seqNumbers[child + 1], child))
+					child++;
+
+				if (!before(arrivalTimes[child], seqNumbers[child], arrivalTime, seq))
+					break;
+
+				move(child, pos);
+				pos = child;
+			}
+
+			set(pos, packet, arrivalTime, seq);
+		}
+
+		return first;
+	}
+
+	// true if (arrivalTime, seq) must leave the queue before element i
+	private boolean before(long arrivalTime, long seq, int i)
+	{
+		return before(arrivalTime, seq, arrivalTimes[i], seqNumbers[i]);
+	}
+
+	private static boolean before(long t1, long s1, long t2, long s2)
+	{
+		return (t1 < t2) || ((t1 == t2) && (s1 < s2));
+	}
+
+	private void move(int from, int to)
+	{
+		packets[to] = packets[from];
+		arrivalTimes[to] = arrivalTimes[from];
+		seqNumbers[to] = seqNumbers[from];
+	}
+
+	private void set(int pos, Payload packet, long arrivalTime, long seq)
+	{
+		packets[pos] = packet;
+		arrivalTimes[pos] = arrivalTime;
+		seqNumbers[pos] = seq;
+	}
+
+	private void grow()
+	{
+		int capacity = Math.max(16, packets.length * 2);
+
+		Payload[] newPackets = new Payload[capacity];
+		long[] newArrivalTimes = new long[capacity];
+		long[] newSeqNumbers = new long[capacity];
+
+		System.arraycopy(packets, 0, newPackets, 0, size);
+		System.arraycopy(arrivalTimes, 0, newArrivalTimes, 0, size);
+		System.arraycopy(seqNumbers, 0, newSeqNumbers, 0, size);
+
+		packets = newPackets;
+		arrivalTimes = newArrivalTimes;
+		seqNumbers = newSeqNumbers;
+	}
+}
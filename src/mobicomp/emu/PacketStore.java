@@ -0,0 +1,207 @@
+package mobicomp.emu;
+
+/*
+ * PacketStore
+ *
+ * keeps the data of packets outside of the java heap (enable it with
+ * mobicomp.emu.offHeapPackets=true in emulator.txt). with thousands of nodes
+ * and big packet buffers, millions of queued byte arrays make the garbage
+ * collector stop the emulation for a long time - and every pause delays the
+ * delivery of all packets. with the store, the heap only holds the small
+ * Payload objects.
+ *
+ * the memory is allocated in slabs of SLAB_SIZE bytes (direct ByteBuffers).
+ * every slab belongs to a size class (64 bytes, 128 bytes, ... 64 KB) and is
+ * cut into blocks of that size. free blocks are kept in a stack per size
+ * class, so storing and freeing a packet is O(1). slabs are never given back
+ * to the system, they are reused by later packets.
+ *
+ * a block is identified by a handle: size class, slab and block number packed
+ * into a long
+ *
+ * packets bigger than the largest block (MAX_LENGTH) aren't stored here, 
+ * Payload keeps them on the heap
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+public class PacketStore
+{
+	// smallest block (2^MIN_SHIFT bytes) and largest block (2^MAX_SHIFT bytes,
+	// enough for any UDP packet)
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	// the most bytes a block can hold
+	public static final int MAX_LENGTH = 1 << MAX_SHIFT;
+
+	// size of one slab
+	private static final int SLAB_SIZE = 1 << 20;
+
+	// layout of a handle
+	private static final int BLOCK_BITS = 24;
+	private static final int SLAB_BITS = 24;
+	private static final long BLOCK_MASK = (1L << BLOCK_BITS) - 1;
+	private static final long SLAB_MASK = (1L << SLAB_BITS) - 1;
+
+	private SizeClass[] classes = new SizeClass[CLASSES];
+
+	public PacketStore()
+	{
+		for (int i = 0; i < CLASSES; i++)
+			classes[i] = new SizeClass(i);
+	}
+
+	// copy len bytes of data (starting at offset) into the store and return
+	// the handle of the block
+	public long store(byte[] data, int offset, int len)
+	{
+		if (len > MAX_LENGTH)
+			throw new RuntimeException("ERROR: packet too big (" + len + " bytes)");
+
+		int sizeClass = sizeClassOf(len);
+		long handle = classes[sizeClass].allocate();
+
+		ByteBuffer buf = buffer(handle);
+		buf.put(data, offset, len);
+
+		return handle;
+	}
+
+	// copy the remaining bytes of src into the store and return the handle
+	public long store(ByteBuffer src)
+	{
+		int len = src.remaining();
+
+		if (len > MAX_LENGTH)
+			throw new RuntimeException("ERROR: packet too big (" + len + " bytes)");
+
+		long handle = classes[sizeClassOf(len)].allocate();
+
+		ByteBuffer buf = buffer(handle);
+		buf.put(src);
+
+		return handle;
+	}
+
+	// copy len bytes of the block into dest (starting at offset)
+	public void load(long handle, byte[] dest, int offset, int len)
+	{
+		ByteBuffer buf = buffer(handle);
+		buf.get(dest, offset, len);
+	}
+
+	// copy the first len bytes of the block into dest
+	public void load(long handle, ByteBuffer dest, int len)
+	{
+		ByteBuffer buf = buffer(handle);
+		buf.limit(buf.position() + len);
+		dest.put(buf);
+	}
+
+	// give the block back
+	public void free(long handle)
+	{
+		classes[(int) (handle >>> (BLOCK_BITS + SLAB_BITS))].free(handle);
+	}
+
+	// the smallest size class with blocks of at least len bytes
+	private static int sizeClassOf(int len)
+	{
+		int sizeClass = 0;
+
+		while ((1 << (sizeClass + MIN_SHIFT)) < len)
+			sizeClass++;
+
+		return sizeClass;
+	}
+
+	// a view of the block of handle, positioned at its start. every caller
+	// gets its own view, so nobody needs to lock the slab
+	private ByteBuffer buffer(long handle)
+	{
+		SizeClass sc = classes[(int) (handle >>> (BLOCK_BITS + SLAB_BITS))];
+		ByteBuffer slab = sc.getSlab((int) ((handle >>> BLOCK_BITS) & SLAB_MASK));
+
+		ByteBuffer buf = slab.duplicate();
+		int start = (int) (handle & BLOCK_MASK) << sc.shift;
+		buf.limit(start + (1 << sc.shift));
+		buf.position(start);
+
+		return buf;
+	}
+
+	// all slabs and free blocks of one block size
+	private static class SizeClass
+	{
+		// the number of the class and the block size (2^shift)
+		private int index;
+		private int shift;
+
+		// all slabs of this class. the array is replaced when a slab is 
+		// added, so the slabs can be read without a lock
+		private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+		// stack of the handles of all free blocks
+		private long[] free = new long[0];
+		private int freeCount = 0;
+
+		SizeClass(int index)
+		{
+			this.index = index;
+			this.shift = index + MIN_SHIFT;
+		}
+
+		synchronized long allocate()
+		{
+			if (freeCount == 0)
+				addSlab();
+
+			return free[--freeCount];
+		}
+
+		synchronized void free(long handle)
+		{
+			free[freeCount++] = handle;
+		}
+
+		// every store and load gets here - it must not lock
+		ByteBuffer getSlab(int slab)
+		{
+			return slabs[slab];
+		}
+
+		// allocate a new slab and put all its blocks onto the free stack
+		private void addSlab()
+		{
+			int slab = slabs.length;
+
+			if (slab > SLAB_MASK)
+				throw new RuntimeException("ERROR: packet store is full");
+
+			ByteBuffer[] newSlabs = new ByteBuffer[slab + 1];
+			System.arraycopy(slabs, 0, newSlabs, 0, slab);
+			newSlabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+			slabs = newSlabs;
+
+			int blocks = SLAB_SIZE >> shift;
+
+			// the stack must be able to hold all blocks of all slabs
+			if (free.length < newSlabs.length * blocks)
+			{
+				long[] newFree = new long[newSlabs.length * blocks];
+				System.arraycopy(free, 0, newFree, 0, freeCount);
+				free = newFree;
+			}
+
+			long prefix = ((long) index << (BLOCK_BITS + SLAB_BITS))
+				| ((long) slab << BLOCK_BITS);
+
+			// push the blocks in reverse order - the first block is used first
+			for (int block = blocks - 1; block >= 0; block--)
+				free[freeCount++] = prefix | block;
+		}
+	}
+}
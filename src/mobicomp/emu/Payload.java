@@ -0,0 +1,189 @@
+package mobicomp.emu;
+
+/*
+ * Payload
+ *
+ * the content of a sent packet. the data of the DatagramPacket is copied
+ * exactly once when the packet is sent, all receivers share the same
+ * (immutable) copy. this way, a sender may reuse its buffer as soon as send()
+ * returns, no matter how long the packet is in flight.
+ *
+ * a payload counts its references: the sender holds one while sending, every
+ * socket queue holding the payload another one. the last release() frees it
+ *
+ * the payload knows its destination (the group or node it was sent to) and
+ * its source (the address of the sending node and the port of its socket). 
+ * receivers see the source, like with UDP.
+ *
+ * the data is either kept in a byte array or - if mobicomp.emu.offHeapPackets
+ * is set - in a block of the PacketStore outside of the java heap
+ *
+ */
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Payload
+{
+	// the data on the heap (null if it's kept in the PacketStore)
+	private final byte[] data;
+	
+	// the data off the heap (only used if data is null)
+	private final PacketStore store;
+	private final long handle;
+	
+	private final int length;
+	private final InetAddress address;
+	private final int port;
+	private final InetAddress sourceAddress;
+	private final int sourcePort;
+
+	// number of holders of this payload
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	// copy the content of p, sent from sourceAddress and sourcePort. the 
+	// caller holds the first reference
+	public Payload(DatagramPacket p, InetAddress sourceAddress, int sourcePort)
+	{
+		length = p.getLength();
+		store = Emulator.getRef().getPacketStore();
+		
+		// packets too big for the store stay on the heap
+		if (store == null || length > PacketStore.MAX_LENGTH)
+		{
+			data = new byte[length];
+			System.arraycopy(p.getData(), p.getOffset(), data, 0, length);
+			handle = 0;
+		}
+		else
+		{
+			data = null;
+			handle = store.store(p.getData(), p.getOffset(), length);
+		}
+
+		address = p.getAddress();
+		port = p.getPort();
+		this.sourceAddress = sourceAddress;
+		this.sourcePort = sourcePort;
+	}
+	
+	// copy the remaining bytes of src (sent by a DatagramChannel) to address
+	// and port. the caller holds the first reference
+	public Payload(ByteBuffer src, InetAddress address, int port, 
+		InetAddress sourceAddress, int sourcePort)
+	{
+		length = src.remaining();
+		store = Emulator.getRef().getPacketStore();
+		
+		if (store == null || length > PacketStore.MAX_LENGTH)
+		{
+			data = new byte[length];
+			src.get(data);
+			handle = 0;
+		}
+		else
+		{
+			data = null;
+			handle = store.store(src);
+		}
+		
+		this.address = address;
+		this.port = port;
+		this.sourceAddress = sourceAddress;
+		this.sourcePort = sourcePort;
+	}
+
+	// the destination of the packet
+	public InetAddress getAddress()
+	{
+		return address;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+	
+	// the sender of the packet
+	public InetAddress getSourceAddress()
+	{
+		return sourceAddress;
+	}
+	
+	public int getSourcePort()
+	{
+		return sourcePort;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	// copy the payload into the buffer of p and set its address and port to
+	// the source of the packet. if the buffer is too small, the data is 
+	// truncated (like a real socket does). returns the number of bytes 
+	// copied
+	public int copyTo(DatagramPacket p)
+	{
+		int len = Math.min(length, p.getData().length - p.getOffset());
+
+		if (data != null)
+			System.arraycopy(data, 0, p.getData(), p.getOffset(), len);
+		else
+			store.load(handle, p.getData(), p.getOffset(), len);
+
+		p.setAddress(sourceAddress);
+		p.setPort(sourcePort);
+		p.setLength(len);
+
+		return len;
+	}
+
+	// copy the payload into dst. if there's not enough space, the rest of
+	// the data is thrown away (like DatagramChannel.receive() does). returns
+	// the number of bytes copied
+	public int copyTo(ByteBuffer dst)
+	{
+		int len = Math.min(length, dst.remaining());
+
+		if (data != null)
+			dst.put(data, 0, len);
+		else
+			store.load(handle, dst, len);
+
+		return len;
+	}
+
+	// a copy of the data (for output only - the payload itself is immutable)
+	public byte[] getData()
+	{
+		if (data != null)
+			return (byte[]) data.clone();
+		
+		byte[] ret = new byte[length];
+		store.load(handle, ret, 0, length);
+		return ret;
+	}
+
+	// one more holder
+	public void retain()
+	{
+		if (refs.getAndIncrement() <= 0)
+			throw new RuntimeException("ERROR: payload used after release");
+	}
+
+	// a holder doesn't need the payload anymore
+	public void release()
+	{
+		int left = refs.decrementAndGet();
+		
+		if (left < 0)
+			throw new RuntimeException("ERROR: payload released twice");
+		
+		if (left == 0 && data == null)
+			store.free(handle);
+	}
+}
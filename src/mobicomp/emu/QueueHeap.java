@@ -0,0 +1,131 @@
+package mobicomp.emu;
+
+/*
+ * QueueHeap
+ *
+ * the registered sockets ordered by the bytes in their queues (packets in 
+ * flight included), the socket holding the most bytes first. when the 
+ * global byte budget (Options.maxQueuedBytes) is used up, the emulator 
+ * throws away the oldest packet of this socket.
+ *
+ * the heap is kept in an array, every socket knows its position in it. so
+ * finding the biggest socket is O(1) and a socket whose bytes changed is
+ * moved in O(log n)
+ *
+ */
+
+public class QueueHeap
+{
+	// the heap: element i has the children 2i+1 and 2i+2
+	private EmuSocket[] sockets = new EmuSocket[16];
+
+	private int size = 0;
+
+	public synchronized void add(EmuSocket socket)
+	{
+		if (socket.heapIndex >= 0)
+			return;
+
+		if (size == sockets.length)
+		{
+			EmuSocket[] bigger = new EmuSocket[sockets.length * 2];
+			System.arraycopy(sockets, 0, bigger, 0, size);
+			sockets = bigger;
+		}
+
+		socket.heapBytes = socket.getQueuedBytes();
+		set(size++, socket);
+		siftUp(socket.heapIndex);
+	}
+
+	public synchronized void remove(EmuSocket socket)
+	{
+		int pos = socket.heapIndex;
+
+		if (pos < 0)
+			return;
+
+		socket.heapIndex = -1;
+		size--;
+
+		// the last socket takes the free place
+		if (pos < size)
+		{
+			set(pos, sockets[size]);
+			siftUp(pos);
+			siftDown(sockets[pos].heapIndex);
+		}
+
+		sockets[size] = null;
+	}
+
+	// the socket holds bytes bytes now
+	public synchronized void update(EmuSocket socket, int bytes)
+	{
+		if (socket.heapIndex < 0)
+			return;
+
+		int old = socket.heapBytes;
+		socket.heapBytes = bytes;
+
+		if (bytes > old)
+			siftUp(socket.heapIndex);
+		else
+			siftDown(socket.heapIndex);
+	}
+
+	// the socket holding the most bytes (null if there is none)
+	public synchronized EmuSocket peek()
+	{
+		return (size == 0) ? null : sockets[0];
+	}
+
+	private void siftUp(int pos)
+	{
+		EmuSocket socket = sockets[pos];
+
+		while (pos > 0)
+		{
+			int parent = (pos - 1) >>> 1;
+
+			if (sockets[parent].heapBytes >= socket.heapBytes)
+				break;
+
+			set(pos, sockets[parent]);
+			pos = parent;
+		}
+
+		set(pos, socket);
+	}
+
+	private void siftDown(int pos)
+	{
+		EmuSocket socket = sockets[pos];
+
+		while (true)
+		{
+			int child = 2 * pos + 1;
+
+			if (child >= size)
+				break;
+
+			if ((child + 1 < size) &&
+				sockets[child + 1].heapBytes > sockets[child].heapBytes)
+				child++;
+
+			if (sockets[child].heapBytes <= socket.heapBytes)
+				break;
+
+			set(pos, sockets[child]);
+			pos = child;
+		}
+
+		set(pos, socket);
+	}
+
+	private void set(int pos, EmuSocket socket)
+	{
+		sockets[pos] = socket;
+		socket.heapIndex = pos;
+	}
+}